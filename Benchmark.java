@@ -0,0 +1,532 @@
+/**********************************************************
+ *
+ * Benchmark driver for the bloom filter and cuckoo hash variants. Unlike
+ * 'Main.java' this does not grade anything; it prints false positive
+ * rates and throughput so that the variants can be compared on the same
+ * randomString() workload. Some sections also check the tables against
+ * a HashMap (or, for ConcurrentCuckooHash, against what each thread
+ * wrote) and throw on the first disagreement, so it can be re-run after
+ * changes to them.
+ *
+ *     java Benchmark
+ *
+ *********************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class Benchmark {
+    static final int NO_ITEMS = 1 << 20;
+    static final int NO_PROBES = 2000000;
+
+    public static void main(String[] args) {
+        blockedBloomFilter();
+        singlePassHashing();
+        batchProbes();
+        bucketizedCuckooHash();
+        cuckooFilter();
+        crossChecks();
+        concurrentCuckooHash();
+        smallFilters();
+    }
+
+    /*
+     * Generates 'count' random strings with a fixed seed, so every variant
+     * is measured against the same keys.
+     */
+    static String[] randomStrings(int count, long seed) {
+        Random r = new Random(seed);
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = BloomFilter.randomString(r);
+        return keys;
+    }
+
+    static void report(String name, double falsePositiveRate, long addNanos,
+                       long probeNanos, int noAdds, int noProbes) {
+        System.out.printf("\t%-28s fpr %.6f   add %6.1f ns   contains %6.1f ns%n",
+                name, falsePositiveRate,
+                (double) addNanos / noAdds, (double) probeNanos / noProbes);
+    }
+
+    static void blockedBloomFilter() {
+        String[] items = randomStrings(NO_ITEMS, 1);
+        String[] probes = randomStrings(NO_PROBES, 2);
+        Set<String> already = new HashSet<>();
+        for (String s : items)
+            already.add(s);
+
+        System.out.println("\nClassic vs blocked bloom filter, " + NO_ITEMS + " items");
+        for (int log2bits = 23; log2bits <= 25; log2bits++) {
+            for (int noHashes = 4; noHashes <= 8; noHashes += 2) {
+                BloomFilter bf = new BloomFilter(log2bits, noHashes);
+                BlockedBloomFilter bbf = new BlockedBloomFilter(log2bits, noHashes);
+
+                long t0 = System.nanoTime();
+                for (String s : items) bf.add(s);
+                long t1 = System.nanoTime();
+                for (String s : items) bbf.add(s);
+                long t2 = System.nanoTime();
+
+                boolean[] in = new boolean[probes.length];
+                int noNotIn = 0;
+                for (int i = 0; i < probes.length; i++) {
+                    in[i] = already.contains(probes[i]);
+                    if (!in[i]) noNotIn++;
+                }
+
+                int fpClassic = 0, fpBlocked = 0;
+                long p0 = System.nanoTime();
+                for (int i = 0; i < probes.length; i++)
+                    if (bf.contains(probes[i]) && !in[i]) fpClassic++;
+                long p1 = System.nanoTime();
+                for (int i = 0; i < probes.length; i++)
+                    if (bbf.contains(probes[i]) && !in[i]) fpBlocked++;
+                long p2 = System.nanoTime();
+                long classicNanos = p1 - p0, blockedNanos = p2 - p1;
+
+                System.out.println("  2^" + log2bits + " bits, " + noHashes + " hashes"
+                        + " (expected penalty x"
+                        + String.format("%.2f", bbf.falsePositivePenalty(already.size())) + ")");
+                report("classic", (double) fpClassic / noNotIn, t1 - t0, classicNanos,
+                        items.length, probes.length);
+                report("blocked", (double) fpBlocked / noNotIn, t2 - t1, blockedNanos,
+                        items.length, probes.length);
+            }
+        }
+    }
+
+    /*
+     * Same sweep as the commented-out false positivity test in 'Main.java'
+     * (16,384 items), run for both hash modes on identical keys.
+     */
+    static void singlePassHashing() {
+        final int noItems = 1 << 14;
+        String[] items = randomStrings(noItems, 3);
+        String[] probes = randomStrings(NO_PROBES, 4);
+        Set<String> already = new HashSet<>();
+        for (String s : items)
+            already.add(s);
+        boolean[] in = new boolean[probes.length];
+        int noNotIn = 0;
+        for (int i = 0; i < probes.length; i++) {
+            in[i] = already.contains(probes[i]);
+            if (!in[i]) noNotIn++;
+        }
+
+        System.out.println("\nPer-index tables vs single-pass hashing, " + noItems + " items");
+        for (int log2bits = 16; log2bits <= 20; log2bits += 2) {
+            for (int noHashes = 3; noHashes <= 8; noHashes += noHashes < 5 ? 2 : 3) {
+                System.out.println("  2^" + log2bits + " bits, " + noHashes + " hashes");
+                for (BloomFilter.HashMode mode : BloomFilter.HashMode.values()) {
+                    BloomFilter bf = new BloomFilter(log2bits, noHashes, mode);
+                    long t0 = System.nanoTime();
+                    for (String s : items) bf.add(s);
+                    long t1 = System.nanoTime();
+                    int noFalsePositives = 0;
+                    for (int i = 0; i < probes.length; i++)
+                        if (bf.contains(probes[i]) && !in[i]) noFalsePositives++;
+                    long t2 = System.nanoTime();
+                    report(mode.toString(), (double) noFalsePositives / noNotIn,
+                            t1 - t0, t2 - t1, items.length, probes.length);
+                }
+            }
+        }
+    }
+
+    /*
+     * One-at-a-time contains() against containsAll() on a filter that is
+     * well beyond the caches.
+     */
+    static void batchProbes() {
+        String[] items = randomStrings(NO_ITEMS, 5);
+        String[] probes = randomStrings(NO_PROBES, 6);
+        boolean[] out = new boolean[probes.length];
+
+        System.out.println("\nSingle vs batch probes, " + NO_ITEMS + " items");
+        for (int log2bits = 24; log2bits <= 28; log2bits += 2) {
+            for (BloomFilter.HashMode mode : BloomFilter.HashMode.values()) {
+                BloomFilter bf = new BloomFilter(log2bits, 6, mode);
+                long t0 = System.nanoTime();
+                bf.addAll(items);
+                long t1 = System.nanoTime();
+                int positives = 0;
+                for (String s : probes)
+                    if (bf.contains(s)) positives++;
+                long t2 = System.nanoTime();
+                bf.containsAll(probes, out);
+                long t3 = System.nanoTime();
+                for (int i = 0; i < probes.length; i++)
+                    if (out[i]) positives--;
+                if (positives != 0)
+                    throw new IllegalStateException("containsAll disagrees with contains");
+                System.out.printf("\t2^%d bits %-17s addAll %6.1f ns   contains %6.1f ns   containsAll %6.1f ns%n",
+                        log2bits, mode, (double) (t1 - t0) / items.length,
+                        (double) (t2 - t1) / probes.length, (double) (t3 - t2) / probes.length);
+            }
+        }
+    }
+
+    /*
+     * Distinct random strings that also have distinct hashCode()'s, so the
+     * one-slot CuckooHash can hold all of them.
+     */
+    static String[] distinctKeys(int count, long seed) {
+        Set<String> keys = new HashSet<>();
+        Set<Integer> hashCodes = new HashSet<>();
+        List<String> result = new ArrayList<>();
+        Random r = new Random(seed);
+        while (result.size() < count) {
+            String s = BloomFilter.randomString(r) + BloomFilter.randomString(r);
+            if (keys.add(s) && hashCodes.add(s.hashCode()))
+                result.add(s);
+        }
+        return result.toArray(new String[0]);
+    }
+
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /*
+     * One slot per position (seeded CuckooHash) against four slots per
+     * bucket (BucketizedCuckooHash). Keys and values are allocated up
+     * front, so the heap delta is the table structure alone.
+     */
+    static void bucketizedCuckooHash() {
+        final int n = 480000;
+        String[] keys = distinctKeys(n, 7);
+        String[] misses = distinctKeys(n, 8);
+
+        System.out.println("\nCuckooHash (seeded) vs BucketizedCuckooHash, " + n + " entries");
+        for (int variant = 0; variant < 2; variant++) {
+            CuckooHash<String, String> one = null;
+            BucketizedCuckooHash<String, String> four = null;
+            long before = usedHeap();
+            long t0 = System.nanoTime();
+            if (variant == 0) {
+                one = new CuckooHash<>(16, 1);
+                for (String k : keys) one.put(k, k);
+            } else {
+                four = new BucketizedCuckooHash<>(16, 1);
+                for (String k : keys) four.put(k, k);
+            }
+            long t1 = System.nanoTime();
+            int found = 0;
+            for (String k : keys)
+                if ((variant == 0 ? one.get(k) : four.get(k)) != null) found++;
+            long t2 = System.nanoTime();
+            for (String k : misses)
+                if ((variant == 0 ? one.get(k) : four.get(k)) != null) found++;
+            long t3 = System.nanoTime();
+            long bytes = usedHeap() - before;
+            if (found != n)
+                throw new IllegalStateException("lookups disagree with inserts");
+
+            int slots = variant == 0 ? one.mapSize() : four.mapSize();
+            System.out.printf("\t%-22s slots %8d  load %.2f  %5.1f bytes/entry  put %6.1f ns  get hit %5.1f ns  get miss %5.1f ns%n",
+                    variant == 0 ? "CuckooHash" : "BucketizedCuckooHash", slots, (double) n / slots,
+                    (double) bytes / n, (double) (t1 - t0) / n, (double) (t2 - t1) / n, (double) (t3 - t2) / n);
+        }
+
+        // occupancy reached just before the bucketized table has to grow
+        BucketizedCuckooHash<String, String> four = new BucketizedCuckooHash<>(n, 2);
+        int slots = four.mapSize(), placed = 0;
+        for (String k : keys) {
+            four.put(k, k);
+            if (four.mapSize() != slots)
+                break;
+            placed++;
+        }
+        System.out.printf("\tBucketizedCuckooHash grows at load %.3f%n", (double) placed / slots);
+    }
+
+    /*
+     * Cuckoo filter against a (SINGLE_PASS) bloom filter with the same
+     * number of bits, filled to 95% of the cuckoo filter's slots.
+     */
+    static void cuckooFilter() {
+        final int log2noBuckets = 18;
+        final int n = (int) (0.95 * 4 * (1 << log2noBuckets));
+        // distinct keys: a cuckoo filter holds at most 8 copies of a key
+        Set<String> already = new LinkedHashSet<>();
+        Random r = new Random(9);
+        while (already.size() < n)
+            already.add(BloomFilter.randomString(r));
+        String[] items = already.toArray(new String[0]);
+        String[] probes = randomStrings(NO_PROBES, 10);
+        boolean[] in = new boolean[probes.length];
+        int noNotIn = 0;
+        for (int i = 0; i < probes.length; i++) {
+            in[i] = already.contains(probes[i]);
+            if (!in[i]) noNotIn++;
+        }
+
+        System.out.println("\nCuckoo filter vs bloom filter, " + n + " items");
+        for (int fingerprintBits = 8; fingerprintBits <= 16; fingerprintBits += 8) {
+            CuckooFilter cf = new CuckooFilter(log2noBuckets, fingerprintBits);
+            long t0 = System.nanoTime();
+            for (String s : items)
+                if (!cf.add(s))
+                    throw new IllegalStateException("cuckoo filter full at load " + cf.loadFactor());
+            long t1 = System.nanoTime();
+            int fp = 0;
+            for (int i = 0; i < probes.length; i++)
+                if (cf.contains(probes[i]) && !in[i]) fp++;
+            long t2 = System.nanoTime();
+            System.out.printf("  %.1f bits/item (bound fpr %.6f)%n", cf.bitsPerItem(), cf.falsePositiveRateBound());
+            report("cuckoo, " + fingerprintBits + " bit fingerprints", (double) fp / noNotIn,
+                    t1 - t0, t2 - t1, items.length, probes.length);
+
+            int log2bits = Integer.numberOfTrailingZeros((int) cf.noBits());
+            int noHashes = Math.min(8, (int) Math.round(Math.log(2) * cf.noBits() / n));
+            BloomFilter bf = new BloomFilter(log2bits, noHashes, BloomFilter.HashMode.SINGLE_PASS);
+            t0 = System.nanoTime();
+            for (String s : items) bf.add(s);
+            t1 = System.nanoTime();
+            fp = 0;
+            for (int i = 0; i < probes.length; i++)
+                if (bf.contains(probes[i]) && !in[i]) fp++;
+            t2 = System.nanoTime();
+            report("bloom, " + noHashes + " hashes", (double) fp / noNotIn,
+                    t1 - t0, t2 - t1, items.length, probes.length);
+
+            t0 = System.nanoTime();
+            for (String s : items)
+                if (!cf.remove(s))
+                    throw new IllegalStateException("cuckoo filter lost a key");
+            t1 = System.nanoTime();
+            System.out.printf("\t%-28s remove %6.1f ns, %d left%n", "cuckoo", (double) (t1 - t0) / n, cf.size());
+        }
+    }
+
+    /*
+     * Random put / remove / get sequences against a HashMap, for the
+     * primitive maps, seeded CuckooHash (which grows incrementally, so
+     * lookups hit the old table and the stash as well) and
+     * OffHeapCuckooHash. Throws on the first disagreement.
+     */
+    static void crossChecks() {
+        final int ops = 1000000, range = 100000;
+        System.out.println("\nCross-checks against HashMap, " + ops + " operations each");
+        Random r = new Random(11);
+
+        IntIntCuckooMap ii = new IntIntCuckooMap(16, 1);
+        LongLongCuckooMap ll = new LongLongCuckooMap(16, 2);
+        LongObjectCuckooMap<Long> lo = new LongObjectCuckooMap<>(16, 3);
+        Map<Long, Long> ref = new HashMap<>();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            long k = r.nextInt(2 * range) - range;     // 0 included
+            int op = r.nextInt(4);
+            if (op < 2) {
+                long v = r.nextLong();
+                ii.put((int) k, (int) v);
+                ll.put(k, v);
+                lo.put(k, v);
+                ref.put(k, v);
+            } else if (op == 2) {
+                boolean removed = ref.remove(k) != null;
+                if (ii.remove((int) k) != removed | ll.remove(k) != removed | lo.remove(k) != removed)
+                    throw new IllegalStateException("primitive maps: remove(" + k + ") disagrees");
+            }
+            Long v = ref.get(k);
+            boolean in = v != null;
+            if (ii.containsKey((int) k) != in || ll.containsKey(k) != in || !Objects.equals(lo.get(k), v)
+                    || in && (ii.get((int) k, 0) != (int) (long) v || ll.get(k, 0) != v))
+                throw new IllegalStateException("primitive maps: get(" + k + ") disagrees");
+        }
+        if (ii.size() != ref.size() || ll.size() != ref.size() || lo.size() != ref.size())
+            throw new IllegalStateException("primitive maps: size disagrees");
+        System.out.printf("\t%-28s ok, %d entries, %.1f ns/op%n", "primitive maps",
+                ref.size(), (double) (System.nanoTime() - t0) / ops);
+
+        // CuckooHash holds a key once per value, so a new value for a
+        // present key replaces the old one by hand.
+        CuckooHash<String, Integer> ch = new CuckooHash<>(16, 4);
+        Map<String, Integer> chRef = new HashMap<>();
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            String k = "k" + r.nextInt(range);
+            Integer old = chRef.get(k);
+            int op = r.nextInt(4);
+            if (op < 2) {
+                if (old != null)
+                    ch.remove(k, old);
+                ch.put(k, i);
+                chRef.put(k, i);
+            } else if (op == 2) {
+                if (ch.remove(k, old == null ? -1 : old) != (old != null))
+                    throw new IllegalStateException("CuckooHash: remove(" + k + ") disagrees");
+                chRef.remove(k);
+            }
+            if (!Objects.equals(ch.get(k), chRef.get(k)))
+                throw new IllegalStateException("CuckooHash: get(" + k + ") disagrees");
+        }
+        for (Map.Entry<String, Integer> e : chRef.entrySet())
+            if (!e.getValue().equals(ch.get(e.getKey())))
+                throw new IllegalStateException("CuckooHash: lost " + e.getKey());
+        if (ch.size() != chRef.size() || ch.keys().size() != chRef.size() || ch.values().size() != chRef.size())
+            throw new IllegalStateException("CuckooHash: size disagrees");
+        System.out.printf("\t%-28s ok, %d entries, %.1f ns/op%n", "CuckooHash (seeded)",
+                chRef.size(), (double) (System.nanoTime() - t0) / ops);
+
+        OffHeapCuckooHash<String, String> off = new OffHeapCuckooHash<>(16, 5,
+                OffHeapCuckooHash.UTF8, OffHeapCuckooHash.UTF8);
+        Map<String, String> offRef = new HashMap<>();
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            String k = "k" + r.nextInt(range);
+            int op = r.nextInt(4);
+            if (op < 2) {
+                // values of varying length, so records are rewritten in
+                // place or appended, and compaction runs
+                String v = k.repeat(1 + r.nextInt(3));
+                off.put(k, v);
+                offRef.put(k, v);
+            } else if (op == 2) {
+                if (off.remove(k) != (offRef.remove(k) != null))
+                    throw new IllegalStateException("OffHeapCuckooHash: remove(" + k + ") disagrees");
+            }
+            if (!Objects.equals(off.get(k), offRef.get(k)))
+                throw new IllegalStateException("OffHeapCuckooHash: get(" + k + ") disagrees");
+        }
+        for (Map.Entry<String, String> e : offRef.entrySet())
+            if (!e.getValue().equals(off.get(e.getKey())))
+                throw new IllegalStateException("OffHeapCuckooHash: lost " + e.getKey());
+        if (off.size() != offRef.size())
+            throw new IllegalStateException("OffHeapCuckooHash: size disagrees");
+        System.out.printf("\t%-28s ok, %d entries, %.1f ns/op%n", "OffHeapCuckooHash",
+                offRef.size(), (double) (System.nanoTime() - t0) / ops);
+    }
+
+    /*
+     * Stress test of ConcurrentCuckooHash: several threads put, remove and
+     * get at once, each writing its own keys (so it knows what they should
+     * hold) and reading everyone's. The table starts small, so growth and
+     * the eviction paths run under contention. Throws if a get returns a
+     * value that was never put for that key, or if the final contents
+     * differ from what the threads wrote.
+     */
+    static void concurrentCuckooHash() {
+        final int noThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int keysPerThread = 50000, ops = 500000;
+        String[][] keys = new String[noThreads][keysPerThread];
+        for (int t = 0; t < noThreads; t++)
+            for (int i = 0; i < keysPerThread; i++)
+                keys[t][i] = "t" + t + "k" + i;
+
+        ConcurrentCuckooHash<String, String> map = new ConcurrentCuckooHash<>(16);
+        List<Map<String, String>> written = new ArrayList<>();
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[noThreads];
+        for (int t = 0; t < noThreads; t++) {
+            final int self = t;
+            Map<String, String> mine = new HashMap<>();
+            written.add(mine);
+            threads[t] = new Thread(() -> {
+                Random r = new Random(self);
+                for (int i = 0; i < ops && failures.isEmpty(); i++) {
+                    String k = keys[self][r.nextInt(keysPerThread)];
+                    int op = r.nextInt(8);
+                    if (op < 4) {
+                        String v = k + "=" + i;
+                        map.put(k, v);
+                        mine.put(k, v);
+                    } else if (op == 4) {
+                        if (map.remove(k) != (mine.remove(k) != null))
+                            failures.add("remove(" + k + ") disagrees");
+                    } else if (op < 7) {
+                        if (!Objects.equals(map.get(k), mine.get(k)))
+                            failures.add("get(" + k + ") lost a write");
+                    } else {
+                        String other = keys[r.nextInt(noThreads)][r.nextInt(keysPerThread)];
+                        String v = map.get(other);
+                        if (v != null && !v.startsWith(other + "="))
+                            failures.add("get(" + other + ") returned " + v);
+                    }
+                }
+            });
+        }
+
+        System.out.println("\nConcurrentCuckooHash stress, " + noThreads + " threads");
+        long t0 = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted");
+        }
+        long t1 = System.nanoTime();
+        if (!failures.isEmpty())
+            throw new IllegalStateException("ConcurrentCuckooHash: " + failures.peek());
+
+        long expected = 0;
+        for (int t = 0; t < noThreads; t++) {
+            Map<String, String> mine = written.get(t);
+            expected += mine.size();
+            for (String k : keys[t])
+                if (!Objects.equals(map.get(k), mine.get(k)))
+                    throw new IllegalStateException("ConcurrentCuckooHash: " + k + " differs after the run");
+        }
+        if (map.size() != expected)
+            throw new IllegalStateException("ConcurrentCuckooHash: size " + map.size() + ", expected " + expected);
+        System.out.printf("\t%-28s ok, %d entries, %d slots, %.1f ns/op%n", "put/get/remove",
+                expected, map.mapSize(), (double) (t1 - t0) / ((long) noThreads * ops));
+    }
+
+    /*
+     * Filters below one long word of bits (or of counters), where the
+     * word count is not simply a shift of the number of bits. Every key
+     * added must test present, and build() must give the same filter as
+     * add(), at every size from 2 bits up.
+     */
+    static void smallFilters() {
+        String[] keys = randomStrings(40, 12);
+        String[] probes = randomStrings(200, 13);
+        for (int log2noBits = 1; log2noBits <= 8; log2noBits++) {
+            for (BloomFilter.HashMode mode : BloomFilter.HashMode.values()) {
+                ConcurrentBloomFilter concurrent = new ConcurrentBloomFilter(log2noBits, 3, mode);
+                for (String s : keys)
+                    concurrent.add(s);
+                for (String s : keys)
+                    if (!concurrent.contains(s))
+                        throw new IllegalStateException("ConcurrentBloomFilter(" + log2noBits + "): lost " + s);
+
+                // build() goes through a ConcurrentBloomFilter of the same
+                // size, and must set exactly the bits add() sets
+                BloomFilter built = new BloomFilter(log2noBits, 3, mode);
+                BloomFilter added = new BloomFilter(log2noBits, 3, mode);
+                built.build(Arrays.stream(keys));
+                for (String s : keys)
+                    added.add(s);
+                for (String s : probes)
+                    if (built.contains(s) != added.contains(s))
+                        throw new IllegalStateException("BloomFilter(" + log2noBits + ").build(): differs on " + s);
+
+                CountingBloomFilter counting = new CountingBloomFilter(log2noBits, 3, mode);
+                for (String s : keys)
+                    counting.add(s);
+                for (String s : keys)
+                    if (!counting.contains(s))
+                        throw new IllegalStateException("CountingBloomFilter(" + log2noBits + "): lost " + s);
+            }
+        }
+        System.out.println("\nSmall filters ok");
+    }
+}
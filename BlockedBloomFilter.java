@@ -0,0 +1,118 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Cache-line-blocked variant of the bloom filter in 'BloomFilter.java'.
+ *   The bitmap is split into 512-bit (64 byte) blocks; the first hash
+ *   picks a block and all k bits of a key are set inside that block,
+ *   so a lookup touches one block instead of k random words.
+ *
+ ********************************************************************/
+
+class BlockedBloomFilter {
+    private static final int MAX_HASHES = 8;
+    private static final int BLOCK_BITS = 512;
+    private static final int LOG2_BLOCK_WORDS = 3;   // 8 longs per block
+
+    private final long[] data;
+    private final int noHashes;
+    private final int log2noBits;
+    private final int blockShift;
+
+    public BlockedBloomFilter(int log2noBits, int noHashes) {
+        if (log2noBits < 9 || log2noBits > 31)
+            throw new IllegalArgumentException("Invalid number of bits");
+        if (noHashes < 1 || noHashes > MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        // Note, the JVM only aligns array bodies to 8 bytes, so a block
+        // can straddle two adjacent cache lines; the adjacent-line
+        // prefetcher normally pulls both in with the same miss.
+        this.data = new long[1 << (log2noBits - 6)];
+        this.noHashes = noHashes;
+        this.log2noBits = log2noBits;
+        this.blockShift = log2noBits - 9;
+    }
+
+    /*
+     * The multiply-xor hash mixes upwards, so the block number is taken from
+     * the high bits of the first hash. The in-block bit numbers are 9-bit
+     * slices of the second hash; deriving them by double hashing instead
+     * would leave only 2^17 distinct bit patterns per block, which puts a
+     * floor under the false positive rate.
+     */
+    private int blockBase(long h0) {
+        // two shifts, so that a single block (blockShift == 0) maps to 0
+        return (int) (h0 >>> 1 >>> (63 - blockShift)) << LOG2_BLOCK_WORDS;
+    }
+
+    public void add(String s) {
+        long h0 = BloomFilter.hashCode(s, 0);
+        int base = blockBase(h0);
+        long h = BloomFilter.hashCode(s, 1);
+        for (int n = 0; n < noHashes; n++) {
+            if (n == 7)
+                h = h0;   // only seven 9-bit slices fit in one hash
+            int b = (int) h & (BLOCK_BITS - 1);
+            data[base + (b >>> 6)] |= 1L << b;
+            h >>>= 9;
+        }
+    }
+
+    public boolean contains(String s) {
+        long h0 = BloomFilter.hashCode(s, 0);
+        int base = blockBase(h0);
+        long h = BloomFilter.hashCode(s, 1);
+        for (int n = 0; n < noHashes; n++) {
+            if (n == 7)
+                h = h0;
+            int b = (int) h & (BLOCK_BITS - 1);
+            if ((data[base + (b >>> 6)] & (1L << b)) == 0) {
+                return false;
+            }
+            h >>>= 9;
+        }
+        return true;
+    }
+
+    /*
+     * Expected false positive rate of a classic (unblocked) filter of the
+     * same size and number of hashes: (1 - e^(-kn/m))^k
+     */
+    public double classicFalsePositiveRate(long noItems) {
+        double m = Math.pow(2, log2noBits);
+        return Math.pow(1 - Math.exp(-noHashes * noItems / m), noHashes);
+    }
+
+    /*
+     * Expected false positive rate of this blocked layout. The number of
+     * keys landing in one block is Poisson distributed with mean
+     * n * 512 / m, and each key sets k (independently chosen) bits of its
+     * block, so the rate is the Poisson-weighted average of the per-block
+     * rates.
+     */
+    public double expectedFalsePositiveRate(long noItems) {
+        if (noItems <= 0)
+            return 0d;
+        double lambda = (double) noItems * BLOCK_BITS / Math.pow(2, log2noBits);
+        double keep = Math.pow(1 - 1d / BLOCK_BITS, noHashes);
+        double rate = 0;
+        double logFact = 0;
+        int limit = (int) (lambda + 12 * Math.sqrt(lambda) + 32);
+        for (int j = 0; j <= limit; j++) {
+            if (j > 0)
+                logFact += Math.log(j);
+            double p = Math.exp(-lambda + j * Math.log(lambda) - logFact);
+            rate += p * Math.pow(1 - Math.pow(keep, j), noHashes);
+        }
+        return rate;
+    }
+
+    /*
+     * Ratio of the blocked to the classic false positive rate for the given
+     * number of items, i.e., the price paid for one cache miss per lookup.
+     */
+    public double falsePositivePenalty(long noItems) {
+        return expectedFalsePositiveRate(noItems) / classicFalsePositiveRate(noItems);
+    }
+}
@@ -7,18 +7,21 @@
  *
  ********************************************************************/
 
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 import java.util.Random;
 import java.util.HashSet;
 import java.util.Set;
 import java.security.SecureRandom;
 import java.lang.Math;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 class BloomFilter {
     private static final int MAX_HASHES = 8;
-    private static final long[] byteTable;
-    private static final long HSTART = 0xBB40E64DA205B064L;
-    private static final long HMULT = 7664345821815920749L;
+    static final long[] byteTable;
+    static final long HSTART = 0xBB40E64DA205B064L;
+    static final long HMULT = 7664345821815920749L;
 
     static {
         byteTable = new long[256 * MAX_HASHES];
@@ -30,7 +33,7 @@ class BloomFilter {
         }
     }
 
-    private long hashCode(String s, int hcNo) {
+    static long hashCode(String s, int hcNo) {
         long h = HSTART;
         final long hmult = HMULT;
         final long[] ht = byteTable;
@@ -43,11 +46,44 @@ class BloomFilter {
         return h;
     }
 
+    /*
+     * Murmur3 finalizer, spreads the well-mixed high bits of a lane into
+     * the low bits that are used as bit numbers. Also the seeded hash
+     * function of the cuckoo tables, which all use this one copy.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /*
+     * How the k bit numbers of a key are computed:
+     *
+     *  PER_INDEX_TABLES - the original scheme, one pass over the key per
+     *                     hash function, each with its own slice of
+     *                     byteTable.
+     *  SINGLE_PASS      - one pass over the key advancing two table lanes
+     *                     at once, giving a 128-bit hash (h1, h2). The k bit
+     *                     numbers are derived by double hashing
+     *                     (Kirsch-Mitzenmacher): g(i) = h1 + i * h2.
+     */
+    enum HashMode { PER_INDEX_TABLES, SINGLE_PASS }
+
     private final BitSet data;
     private final int noHashes;
     private final int hashMask;
+    private final HashMode mode;
+    private Counters counters = null;
 
     public BloomFilter(int log2noBits, int noHashes) {
+        this(log2noBits, noHashes, HashMode.PER_INDEX_TABLES);
+    }
+
+    public BloomFilter(int log2noBits, int noHashes, HashMode mode) {
         if (log2noBits < 1 || log2noBits > 31)
             throw new IllegalArgumentException("Invalid number of bits");
         if (noHashes < 1 || noHashes > MAX_HASHES)
@@ -56,6 +92,7 @@ class BloomFilter {
         this.data = new BitSet(1 << log2noBits);
         this.noHashes = noHashes;
         this.hashMask = (1 << log2noBits) - 1;
+        this.mode = mode;
     }
 
     public BloomFilter(int noItems, int bitsPerItem, int noHashes) {
@@ -71,27 +108,517 @@ class BloomFilter {
         this.data = new BitSet(1 << logBits);
         this.noHashes = noHashes;
         this.hashMask = (1 << logBits) - 1;
+        this.mode = HashMode.PER_INDEX_TABLES;
     }
 
     public void add(String s) {
-        for (int n = 0; n < noHashes; n++) {
-            long hc = hashCode(s, n);
-            int bitNo = (int) (hc) & this.hashMask;
-            data.set(bitNo);
+        if (counters != null)
+            counters.adds.increment();
+        if (mode == HashMode.SINGLE_PASS) {
+            probe(lanes(s, 0, 1, true), true);
+            return;
         }
+        for (int n = 0; n < noHashes; n += 2)
+            probe(lanes(s, n, n + 1, false), n, true);
     }
 
     public boolean contains(String s) {
+        if (mode == HashMode.SINGLE_PASS)
+            return counted(probe(lanes(s, 0, 1, true), false));
+        for (int n = 0; n < noHashes; n += 2) {
+            if (!probe(lanes(s, n, n + 1, false), n, false))
+                return counted(false);
+        }
+        return counted(true);
+    }
+
+    /*
+     * The overloads below let keys be probed where they already are (a
+     * StringBuilder, a char buffer, a network buffer) without building a
+     * String first. They hash in place, don't allocate, and give the same
+     * bit numbers as add(String) / contains(String) for equal content;
+     * byte keys are read as UTF-8.
+     */
+
+    public void add(CharSequence s) {
+        if (counters != null)
+            counters.adds.increment();
+        if (mode == HashMode.SINGLE_PASS) {
+            probe(lanes(s, 0, 1, true), true);
+            return;
+        }
+        for (int n = 0; n < noHashes; n += 2)
+            probe(lanes(s, n, n + 1, false), n, true);
+    }
+
+    public boolean contains(CharSequence s) {
+        if (mode == HashMode.SINGLE_PASS)
+            return counted(probe(lanes(s, 0, 1, true), false));
+        for (int n = 0; n < noHashes; n += 2) {
+            if (!probe(lanes(s, n, n + 1, false), n, false))
+                return counted(false);
+        }
+        return counted(true);
+    }
+
+    public void add(char[] a, int off, int len) {
+        if (counters != null)
+            counters.adds.increment();
+        if (mode == HashMode.SINGLE_PASS) {
+            probe(lanes(a, off, len, 0, 1, true), true);
+            return;
+        }
+        for (int n = 0; n < noHashes; n += 2)
+            probe(lanes(a, off, len, n, n + 1, false), n, true);
+    }
+
+    public boolean contains(char[] a, int off, int len) {
+        if (mode == HashMode.SINGLE_PASS)
+            return counted(probe(lanes(a, off, len, 0, 1, true), false));
+        for (int n = 0; n < noHashes; n += 2) {
+            if (!probe(lanes(a, off, len, n, n + 1, false), n, false))
+                return counted(false);
+        }
+        return counted(true);
+    }
+
+    public void add(byte[] a, int off, int len) {
+        if (counters != null)
+            counters.adds.increment();
+        if (mode == HashMode.SINGLE_PASS) {
+            probe(lanes(a, off, len, 0, 1, true), true);
+            return;
+        }
+        for (int n = 0; n < noHashes; n += 2)
+            probe(lanes(a, off, len, n, n + 1, false), n, true);
+    }
+
+    public boolean contains(byte[] a, int off, int len) {
+        if (mode == HashMode.SINGLE_PASS)
+            return counted(probe(lanes(a, off, len, 0, 1, true), false));
+        for (int n = 0; n < noHashes; n += 2) {
+            if (!probe(lanes(a, off, len, n, n + 1, false), n, false))
+                return counted(false);
+        }
+        return counted(true);
+    }
+
+    /*
+     * Int keys skip the byte tables: the two lanes are mix() of the value
+     * and of the value xor HSTART, and always feed the double hash, as in
+     * SINGLE_PASS, whatever the mode.
+     */
+    public void add(int v) {
+        if (counters != null)
+            counters.adds.increment();
+        probe(pack(v, v ^ HSTART, true), true);
+    }
+
+    public boolean contains(int v) {
+        return counted(probe(pack(v, v ^ HSTART, true), false));
+    }
+
+    /*
+     * The key is the buffer's remaining bytes; its position is not changed.
+     */
+    public void add(ByteBuffer b) {
+        if (counters != null)
+            counters.adds.increment();
+        if (mode == HashMode.SINGLE_PASS) {
+            probe(lanes(b, 0, 1, true), true);
+            return;
+        }
+        for (int n = 0; n < noHashes; n += 2)
+            probe(lanes(b, n, n + 1, false), n, true);
+    }
+
+    public boolean contains(ByteBuffer b) {
+        if (mode == HashMode.SINGLE_PASS)
+            return counted(probe(lanes(b, 0, 1, true), false));
+        for (int n = 0; n < noHashes; n += 2) {
+            if (!probe(lanes(b, n, n + 1, false), n, false))
+                return counted(false);
+        }
+        return counted(true);
+    }
+
+    /*
+     * Sets (set == true) or tests one bit. Returns false if a tested bit is
+     * clear.
+     */
+    private boolean probe(int bitNo, boolean set) {
+        if (set) {
+            data.set(bitNo);
+            return true;
+        }
+        return data.get(bitNo);
+    }
+
+    /*
+     * PER_INDEX_TABLES: the two lanes are hash functions n and n + 1.
+     */
+    private boolean probe(long lanes, int n, boolean set) {
+        if (!probe((int) lanes & hashMask, set))
+            return false;
+        return n + 1 >= noHashes || probe((int) (lanes >>> 32) & hashMask, set);
+    }
+
+    /*
+     * SINGLE_PASS: the two lanes are h1 and h2 of the double hash.
+     */
+    private boolean probe(long lanes, boolean set) {
+        int h1 = (int) lanes;
+        int h2 = (int) (lanes >>> 32) | 1;   // odd step, so the k bit numbers are distinct
         for (int n = 0; n < noHashes; n++) {
-            long hc = hashCode(s, n);
-            int bitNo = (int) (hc) & this.hashMask;
-            if (!data.get(bitNo)) {
+            if (!probe(h1 & hashMask, set))
                 return false;
-            }
+            h1 += h2;
         }
         return true;
     }
 
+    // One char of a key into a lane; 'startIx' is the lane's byteTable slice
+    static long step(long h, int ch, int startIx) {
+        h = (h * HMULT) ^ byteTable[startIx + (ch & 0xff)];
+        return (h * HMULT) ^ byteTable[startIx + ((ch >>> 8) & 0xff)];
+    }
+
+    private static long pack(long a, long b, boolean mixed) {
+        if (mixed) {
+            a = mix(a);
+            b = mix(b);
+        }
+        return (a & 0xFFFFFFFFL) | (b << 32);
+    }
+
+    /*
+     * Advances the table lanes 'laneA' and 'laneB' (slices of byteTable)
+     * over the key in a single pass. Bit numbers are at most 31 bits wide,
+     * so the low halves of both lanes are returned packed in one long,
+     * laneA in the low half. With 'mixed' the lanes go through mix() first,
+     * as SINGLE_PASS requires.
+     */
+    static long lanes(String s, int laneA, int laneB, boolean mixed) {
+        long a = HSTART, b = HSTART;
+        int startA = 256 * laneA, startB = 256 * laneB;
+        for (int len = s.length(), i = 0; i < len; i++) {
+            char ch = s.charAt(i);
+            a = step(a, ch, startA);
+            b = step(b, ch, startB);
+        }
+        return pack(a, b, mixed);
+    }
+
+    static long lanes(CharSequence s, int laneA, int laneB, boolean mixed) {
+        long a = HSTART, b = HSTART;
+        int startA = 256 * laneA, startB = 256 * laneB;
+        for (int len = s.length(), i = 0; i < len; i++) {
+            char ch = s.charAt(i);
+            a = step(a, ch, startA);
+            b = step(b, ch, startB);
+        }
+        return pack(a, b, mixed);
+    }
+
+    static long lanes(char[] s, int off, int len, int laneA, int laneB, boolean mixed) {
+        long a = HSTART, b = HSTART;
+        int startA = 256 * laneA, startB = 256 * laneB;
+        for (int i = off, end = off + len; i < end; i++) {
+            char ch = s[i];
+            a = step(a, ch, startA);
+            b = step(b, ch, startB);
+        }
+        return pack(a, b, mixed);
+    }
+
+    /*
+     * UTF-8 is decoded on the fly into the UTF-16 chars a String would hold
+     * (see utf8()); code points above U+FFFF become a surrogate pair.
+     */
+    static long lanes(byte[] s, int off, int len, int laneA, int laneB, boolean mixed) {
+        long a = HSTART, b = HSTART;
+        int startA = 256 * laneA, startB = 256 * laneB;
+        int i = off, end = off + len;
+        while (i < end) {
+            int cp = s[i++];
+            if (cp < 0) {
+                int n = end - i;
+                int d = utf8(cp, n > 0 ? s[i] : 0, n > 1 ? s[i + 1] : 0, n > 2 ? s[i + 2] : 0, n);
+                i += d & 3;
+                cp = d >>> 2;
+            }
+            if (cp >= 0x10000) {
+                a = step(a, Character.highSurrogate(cp), startA);
+                b = step(b, Character.highSurrogate(cp), startB);
+                cp = Character.lowSurrogate(cp);
+            }
+            a = step(a, cp, startA);
+            b = step(b, cp, startB);
+        }
+        return pack(a, b, mixed);
+    }
+
+    static long lanes(ByteBuffer s, int laneA, int laneB, boolean mixed) {
+        if (s.hasArray())
+            return lanes(s.array(), s.arrayOffset() + s.position(), s.remaining(), laneA, laneB, mixed);
+        long a = HSTART, b = HSTART;
+        int startA = 256 * laneA, startB = 256 * laneB;
+        int i = s.position(), end = s.limit();
+        while (i < end) {
+            int cp = s.get(i++);
+            if (cp < 0) {
+                int n = end - i;
+                int d = utf8(cp, n > 0 ? s.get(i) : 0, n > 1 ? s.get(i + 1) : 0, n > 2 ? s.get(i + 2) : 0, n);
+                i += d & 3;
+                cp = d >>> 2;
+            }
+            if (cp >= 0x10000) {
+                a = step(a, Character.highSurrogate(cp), startA);
+                b = step(b, Character.highSurrogate(cp), startB);
+                cp = Character.lowSurrogate(cp);
+            }
+            a = step(a, cp, startA);
+            b = step(b, cp, startB);
+        }
+        return pack(a, b, mixed);
+    }
+
+    /*
+     * Decodes the UTF-8 sequence starting with the non-ASCII byte b0, given
+     * the next bytes b1..b3 of which the first 'available' exist. Returns
+     * (code point << 2 | number of bytes used after b0).
+     *
+     * Malformed input decodes to U+FFFD as in new String(bytes, UTF_8):
+     * a bad lead byte, or the start of a sequence cut short by a byte that
+     * isn't 10xxxxxx (or by the end of the key), becomes one U+FFFD and
+     * decoding resumes after it. Overlong forms, code points above
+     * U+10FFFF and encoded surrogates are malformed too.
+     */
+    private static int utf8(int b0, int b1, int b2, int b3, int available) {
+        final int bad = 0xFFFD << 2;
+        int extra = b0 >= -32 ? (b0 >= -16 ? (b0 >= -8 ? -1 : 3) : 2) : (b0 >= -62 ? 1 : -1);
+        if (extra < 0)
+            return bad;
+        int cp = b0 & (0x3f >> extra);
+        for (int e = 0; e < extra; e++) {
+            int next = e == 0 ? b1 : e == 1 ? b2 : b3;
+            if (e == available || (next & 0xc0) != 0x80)
+                return bad | e;
+            cp = (cp << 6) | (next & 0x3f);
+            // overlong or out of range, as soon as the second byte tells
+            if (e == 0 && (extra == 2 && cp < 0x20 || extra == 3 && (cp < 0x10 || cp > 0x10F)))
+                return bad;
+        }
+        if (cp >= 0xD800 && cp <= 0xDFFF)
+            return bad | extra;
+        return cp << 2 | extra;
+    }
+
+    private void checkCompatible(BloomFilter other) {
+        if (other.hashMask != hashMask || other.noHashes != noHashes || other.mode != mode)
+            throw new IllegalArgumentException("Bloom filters have different geometry");
+    }
+
+    /*
+     * Merges another filter into this one (bitwise OR of the bitmaps). The
+     * result is the filter that would have been built from both key sets.
+     */
+    public void union(BloomFilter other) {
+        checkCompatible(other);
+        data.or(other.data);
+    }
+
+    /*
+     * Bitwise AND of the bitmaps. Contains every key that is in both key
+     * sets, with a false positive rate no better than that of the union.
+     */
+    public void intersect(BloomFilter other) {
+        checkCompatible(other);
+        data.and(other.data);
+    }
+
+    /*
+     * Adds every key of the stream using all cores. The stream is run in
+     * parallel on the fork/join pool, every task setting bits in one
+     * shared ConcurrentBloomFilter (atomic ORs, same bit numbers), whose
+     * words are then OR'ed into this filter. The extra memory is twice
+     * the bitmap, however many tasks the stream is split into.
+     */
+    public void build(Stream<String> keys) {
+        ConcurrentBloomFilter shared = new ConcurrentBloomFilter(Integer.bitCount(hashMask), noHashes, mode);
+        keys.parallel().forEach(shared::add);
+        data.or(BitSet.valueOf(shared.words()));
+    }
+
+    /*
+     * Computes the k bit numbers of a key into out[off .. off + k), for
+     * filters that keep their bits somewhere other than a BitSet (e.g.,
+     * CountingBloomFilter) and for the batch calls. Same numbers as add()
+     * for the same mask, number of hashes and mode.
+     */
+    static void bitNumbers(String s, int noHashes, int hashMask, HashMode mode, int[] out, int off) {
+        if (mode == HashMode.SINGLE_PASS) {
+            long lanes = lanes(s, 0, 1, true);
+            int h1 = (int) lanes;
+            int h2 = (int) (lanes >>> 32) | 1;
+            for (int n = 0; n < noHashes; n++) {
+                out[off + n] = h1 & hashMask;
+                h1 += h2;
+            }
+            return;
+        }
+        for (int n = 0; n < noHashes; n += 2) {
+            long lanes = lanes(s, n, n + 1, false);
+            out[off + n] = (int) lanes & hashMask;
+            if (n + 1 < noHashes)
+                out[off + n + 1] = (int) (lanes >>> 32) & hashMask;
+        }
+    }
+
+    static void bitNumbers(String s, int noHashes, int hashMask, HashMode mode, int[] out) {
+        bitNumbers(s, noHashes, hashMask, mode, out, 0);
+    }
+
+    /*
+     * Batch calls. Keys are taken BATCH at a time: first all their bit
+     * numbers are computed, then the bits are gathered, so the loads for
+     * different keys don't depend on each other and their cache misses
+     * overlap instead of being taken one key at a time.
+     */
+    private static final int BATCH = 64;
+
+    public void addAll(String[] keys) {
+        if (counters != null)
+            counters.adds.add(keys.length);
+        int[] bitNos = new int[BATCH * noHashes];
+        for (int from = 0; from < keys.length; from += BATCH) {
+            int count = Math.min(BATCH, keys.length - from);
+            for (int i = 0; i < count; i++)
+                bitNumbers(keys[from + i], noHashes, hashMask, mode, bitNos, i * noHashes);
+            for (int j = 0, end = count * noHashes; j < end; j++)
+                data.set(bitNos[j]);
+        }
+    }
+
+    /*
+     * Sets out[i] to contains(keys[i]) for every key. Keys drop out of the
+     * batch at their first clear bit, as in contains(); each round tests the
+     * next bits of every key still in the running, and the loads within a
+     * round are independent.
+     */
+    public void containsAll(String[] keys, boolean[] out) {
+        if (out.length < keys.length)
+            throw new IllegalArgumentException("Result array is too small");
+        int[] bitNos = new int[BATCH * noHashes];
+        for (int from = 0; from < keys.length; from += BATCH) {
+            int count = Math.min(BATCH, keys.length - from);
+            for (int i = 0; i < count; i++)
+                out[from + i] = true;
+
+            if (mode == HashMode.SINGLE_PASS) {
+                // one pass per key yields all k bit numbers up front
+                for (int i = 0; i < count; i++)
+                    bitNumbers(keys[from + i], noHashes, hashMask, mode, bitNos, i * noHashes);
+                boolean any = true;
+                for (int n = 0; n < noHashes && any; n++) {
+                    any = false;
+                    for (int i = 0; i < count; i++) {
+                        if (out[from + i]) {
+                            boolean found = data.get(bitNos[i * noHashes + n]);
+                            out[from + i] = found;
+                            any |= found;
+                        }
+                    }
+                }
+                continue;
+            }
+
+            // each pass yields two bit numbers, so only hash the next pair
+            // for the keys that are still in the running
+            boolean any = true;
+            for (int n = 0; n < noHashes && any; n += 2) {
+                for (int i = 0; i < count; i++) {
+                    if (out[from + i]) {
+                        long lanes = lanes(keys[from + i], n, n + 1, false);
+                        bitNos[2 * i] = (int) lanes & hashMask;
+                        bitNos[2 * i + 1] = n + 1 < noHashes
+                                ? (int) (lanes >>> 32) & hashMask : bitNos[2 * i];
+                    }
+                }
+                any = false;
+                for (int i = 0; i < count; i++) {
+                    if (out[from + i]) {
+                        boolean found = data.get(bitNos[2 * i]) & data.get(bitNos[2 * i + 1]);
+                        out[from + i] = found;
+                        any |= found;
+                    }
+                }
+            }
+        }
+        if (counters != null) {
+            counters.probes.add(keys.length);
+            for (int i = 0; i < keys.length; i++)
+                if (out[i]) counters.positives.increment();
+        }
+    }
+
+    /*
+     * Introspection, cheap enough to poll from a monitoring loop (one pass
+     * of popcounts over the bitmap) and with no need for a shadow set of
+     * the inserted keys. With X of the m bits set:
+     *
+     *   estimated items  n* = -(m / k) * ln(1 - X / m)   (Swamidass & Baldi)
+     *   estimated FPR        = (X / m)^k
+     */
+
+    public long noBits() { return (long) hashMask + 1; }
+
+    public int bitCount() { return data.cardinality(); }
+
+    public double fillRatio() { return bitCount() / (double) noBits(); }
+
+    public double estimatedSize() {
+        double fill = fillRatio();
+        if (fill >= 1)
+            return Double.POSITIVE_INFINITY;
+        return -noBits() / (double) noHashes * Math.log(1 - fill);
+    }
+
+    public double estimatedFalsePositiveRate() {
+        return Math.pow(fillRatio(), noHashes);
+    }
+
+    /*
+     * Optional call counters, off by default. LongAdder is striped, so the
+     * counters don't become a point of contention when several threads
+     * probe a filled filter.
+     */
+    private static final class Counters {
+        private final LongAdder adds = new LongAdder();
+        private final LongAdder probes = new LongAdder();
+        private final LongAdder positives = new LongAdder();
+    }
+
+    public void enableCounters() {
+        if (counters == null)
+            counters = new Counters();
+    }
+
+    private boolean counted(boolean found) {
+        if (counters != null) {
+            counters.probes.increment();
+            if (found)
+                counters.positives.increment();
+        }
+        return found;
+    }
+
+    public long addCount() { return counters == null ? 0 : counters.adds.sum(); }
+
+    public long containsCount() { return counters == null ? 0 : counters.probes.sum(); }
+
+    public long positiveCount() { return counters == null ? 0 : counters.positives.sum(); }
+
     public static final String LETTERS =
             "abcdefghijklmnopqrstuvexyABCDEFGHIJKLMNOPQRSTUVWYXZzéèêàôû";
     public static String randomString(Random r) {
@@ -0,0 +1,193 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Bucketized (4-way set-associative) cuckoo hash table. Where
+ *   CuckooHash has one entry per hash position, here each of the two
+ *   positions of a key is a bucket of four slots, so an insert only has
+ *   to evict when all eight candidate slots are taken. That lets the
+ *   table run at 90-95% occupancy instead of about 50%.
+ *
+ *   The slots of a bucket are stored next to each other in two arrays
+ *   (no per-entry objects): the cached hash codes of a bucket are 16
+ *   contiguous bytes, and its keys and values are interleaved in the
+ *   same 8 references. A lookup scans the hash codes of one or two
+ *   buckets and only touches the entries when a hash code matches.
+ *
+ *   Unlike CuckooHash, keys are unique: putting an existing key replaces
+ *   its value.
+ *
+ ********************************************************************/
+
+import java.util.SplittableRandom;
+
+@SuppressWarnings("unchecked")
+public class BucketizedCuckooHash<K, V> {
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+
+    private int noBuckets;
+    private int[] hashes;
+    private Object[] entries;   // key of slot i at 2i, its value at 2i + 1
+    private int size = 0;
+    private final SplittableRandom random;
+    private long seed1, seed2;
+
+    public BucketizedCuckooHash(int size, long seed) {
+        random = new SplittableRandom(seed);
+        seed1 = random.nextLong();
+        seed2 = random.nextLong();
+        int buckets = Math.max(1, (size + SLOTS - 1) / SLOTS);
+        allocate(Math.max(2, Integer.highestOneBit(Math.max(1, buckets - 1)) << 1));
+    }
+
+    private void allocate(int buckets) {
+        noBuckets = buckets;
+        hashes = new int[buckets * SLOTS];
+        entries = new Object[2 * buckets * SLOTS];
+    }
+
+    private int bucket1(int h) { return (int) BloomFilter.mix(h ^ seed1) & (noBuckets - 1); }
+    private int bucket2(int h) { return (int) BloomFilter.mix(h ^ seed2) & (noBuckets - 1); }
+
+    public int size() { return size; }
+
+    public int mapSize() { return noBuckets * SLOTS; }
+
+    public void clear() {
+        allocate(noBuckets);
+        size = 0;
+    }
+
+    /*
+     * Returns the slot holding the key in the given bucket, or -1.
+     */
+    private int find(int bucket, int h, Object key) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (hashes[i] == h && entries[2 * i] != null && entries[2 * i].equals(key))
+                return i;
+        }
+        return -1;
+    }
+
+    private int freeSlot(int bucket) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (entries[2 * i] == null)
+                return i;
+        }
+        return -1;
+    }
+
+    public V get(K key) {
+        int h = key.hashCode();
+        int slot = find(bucket1(h), h, key);
+        if (slot < 0)
+            slot = find(bucket2(h), h, key);
+        return slot < 0 ? null : (V) entries[2 * slot + 1];
+    }
+
+    public boolean remove(K key) {
+        int h = key.hashCode();
+        int slot = find(bucket1(h), h, key);
+        if (slot < 0)
+            slot = find(bucket2(h), h, key);
+        if (slot < 0)
+            return false;
+        entries[2 * slot] = null;
+        entries[2 * slot + 1] = null;
+        size--;
+        return true;
+    }
+
+    public void put(K key, V value) {
+        int h = key.hashCode();
+        int b1 = bucket1(h), b2 = bucket2(h);
+        int slot = find(b1, h, key);
+        if (slot < 0)
+            slot = find(b2, h, key);
+        if (slot >= 0) {
+            entries[2 * slot + 1] = value;
+            return;
+        }
+        size++;
+        Object[] homeless = place(h, key, value, b1, b2);
+        if (homeless != null)
+            grow(homeless);
+    }
+
+    /*
+     * Places a new entry, evicting a random slot of a full bucket and
+     * moving its entry to that entry's other bucket. Returns null on
+     * success, or the entry left over after MAX_KICKS evictions as
+     * { key, value }.
+     */
+    private Object[] place(int h, Object key, Object value, int b1, int b2) {
+        int slot = freeSlot(b1);
+        if (slot < 0)
+            slot = freeSlot(b2);
+        int bucket = random.nextBoolean() ? b1 : b2;
+        for (int kicks = 0; slot < 0 && kicks < MAX_KICKS; kicks++) {
+            int victim = bucket * SLOTS + random.nextInt(SLOTS);
+            int vh = hashes[victim];
+            Object vk = entries[2 * victim], vv = entries[2 * victim + 1];
+            hashes[victim] = h;
+            entries[2 * victim] = key;
+            entries[2 * victim + 1] = value;
+            h = vh;
+            key = vk;
+            value = vv;
+
+            // Move the evicted entry to its alternate bucket
+            int alt1 = bucket1(h);
+            bucket = alt1 == bucket ? bucket2(h) : alt1;
+            slot = freeSlot(bucket);
+        }
+        if (slot < 0)
+            return new Object[] { key, value };
+        hashes[slot] = h;
+        entries[2 * slot] = key;
+        entries[2 * slot + 1] = value;
+        return null;
+    }
+
+    /*
+     * Doubles the number of buckets, picks new seeds and reinserts every
+     * entry plus the one that could not be placed; repeats one size up in
+     * the (unlikely, at half occupancy) case that this fails too.
+     */
+    private void grow(Object[] homeless) {
+        Object[] oldEntries = entries;
+        int[] oldHashes = hashes;
+        int buckets = noBuckets;
+        long oldSeed1 = seed1, oldSeed2 = seed2;
+        while (true) {
+            // Nine keys with equal hashCode() share both buckets, which no
+            // seed or size can fix; don't grow forever. The table is left
+            // as it was, without the entry that could not be placed.
+            if ((long) buckets * SLOTS > 8L * (size + 16)) {
+                noBuckets = oldHashes.length / SLOTS;
+                hashes = oldHashes;
+                entries = oldEntries;
+                seed1 = oldSeed1;
+                seed2 = oldSeed2;
+                size--;
+                throw new IllegalStateException("Too many keys with equal hashCode()");
+            }
+            buckets *= 2;
+            allocate(buckets);
+            seed1 = random.nextLong();
+            seed2 = random.nextLong();
+            boolean placed = true;
+            for (int i = 0; i < oldHashes.length && placed; i++) {
+                if (oldEntries[2 * i] != null) {
+                    int h = oldHashes[i];
+                    placed = place(h, oldEntries[2 * i], oldEntries[2 * i + 1],
+                            bucket1(h), bucket2(h)) == null;
+                }
+            }
+            int h = homeless[0].hashCode();
+            if (placed && place(h, homeless[0], homeless[1], bucket1(h), bucket2(h)) == null)
+                return;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Thread-safe variant of the bloom filter in 'BloomFilter.java'. The
+ *   bits are kept in a long[] that is accessed through a VarHandle, so
+ *   any number of threads can add and probe the same instance without
+ *   an external lock:
+ *
+ *     - add() sets each bit with an atomic OR, and skips the write
+ *       altogether when the bit is already set. No thread ever waits
+ *       on another one.
+ *     - contains() is k acquire-reads, so it is wait-free and can run
+ *       while the filter is being filled.
+ *
+ *   For the same size, number of hashes and hash mode, the bit numbers
+ *   are identical to those of BloomFilter.
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+class ConcurrentBloomFilter {
+    private static final int MAX_HASHES = 8;
+    private static final VarHandle WORDS =
+            MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] data;
+    private final int noHashes;
+    private final int hashMask;
+    private final BloomFilter.HashMode mode;
+
+    public ConcurrentBloomFilter(int log2noBits, int noHashes) {
+        this(log2noBits, noHashes, BloomFilter.HashMode.PER_INDEX_TABLES);
+    }
+
+    public ConcurrentBloomFilter(int log2noBits, int noHashes, BloomFilter.HashMode mode) {
+        if (log2noBits < 1 || log2noBits > 31)
+            throw new IllegalArgumentException("Invalid number of bits");
+        if (noHashes < 1 || noHashes > MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        this.data = new long[(int) Math.max(1, (1L << log2noBits) >>> 6)];
+        this.noHashes = noHashes;
+        this.hashMask = (1 << log2noBits) - 1;
+        this.mode = mode;
+    }
+
+    public void add(String s) {
+        probe(s, true);
+    }
+
+    public boolean contains(String s) {
+        return probe(s, false);
+    }
+
+    /*
+     * Same structure as BloomFilter.probe(), on the lanes of
+     * BloomFilter.lanes(), with the BitSet accesses replaced by setBit() /
+     * getBit().
+     */
+    private boolean probe(String s, boolean set) {
+        if (mode == BloomFilter.HashMode.SINGLE_PASS) {
+            long lanes = BloomFilter.lanes(s, 0, 1, true);
+            int h1 = (int) lanes;
+            int h2 = (int) (lanes >>> 32) | 1;
+            for (int n = 0; n < noHashes; n++) {
+                if (!probe(h1 & hashMask, set))
+                    return false;
+                h1 += h2;
+            }
+            return true;
+        }
+        for (int n = 0; n < noHashes; n += 2) {
+            long lanes = BloomFilter.lanes(s, n, n + 1, false);
+            if (!probe((int) lanes & hashMask, set))
+                return false;
+            if (n + 1 < noHashes && !probe((int) (lanes >>> 32) & hashMask, set))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean probe(int bitNo, boolean set) {
+        if (set) {
+            setBit(bitNo);
+            return true;
+        }
+        return getBit(bitNo);
+    }
+
+    /*
+     * The bitmap, for BloomFilter.build(). Only meaningful once all adds
+     * are done.
+     */
+    long[] words() { return data; }
+
+    private void setBit(int bitNo) {
+        int word = bitNo >>> 6;
+        long mask = 1L << bitNo;
+        // Only issue the atomic write when the bit is clear; once the filter
+        // fills up most adds then become plain reads of a shared cache line.
+        if (((long) WORDS.getAcquire(data, word) & mask) == 0)
+            WORDS.getAndBitwiseOr(data, word, mask);
+    }
+
+    private boolean getBit(int bitNo) {
+        return ((long) WORDS.getAcquire(data, bitNo >>> 6) & (1L << bitNo)) != 0;
+    }
+}
@@ -0,0 +1,370 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Concurrent cuckoo hash map, after the design of libcuckoo (Li et
+ *   al., "Algorithmic Improvements for Fast Concurrent Cuckoo Hashing"):
+ *
+ *     - 4-slot buckets as in BucketizedCuckooHash, guarded by a fixed
+ *       set of lock stripes; a bucket uses stripe (bucket % STRIPES).
+ *     - Each stripe lock is also a seqlock: its version is odd while a
+ *       writer holds it. get() never takes a lock; it reads the versions
+ *       of its two stripes, scans the buckets, and retries if either
+ *       version moved in the meantime.
+ *     - When both buckets of a key are full, put() searches breadth-first
+ *       for a short path of evictions ending in a free slot WITHOUT
+ *       holding any lock, then carries out the moves one at a time from
+ *       the free end, locking only the two buckets of each move and
+ *       re-validating them. Writers therefore hold at most two stripes,
+ *       and only for a few stores.
+ *     - Growing the table takes every stripe.
+ *
+ *   Keys are unique: putting an existing key replaces its value. Since
+ *   get() may look at entries while they are being written, keys should
+ *   be immutable objects with final fields (e.g., String).
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+@SuppressWarnings("unchecked")
+public class ConcurrentCuckooHash<K, V> {
+    private static final int SLOTS = 4;
+    private static final int STRIPES = 1024;
+    private static final int PAD = 8;            // one stripe per 64 byte line
+    private static final int MAX_BFS_DEPTH = 5;
+    private static final int MAX_BFS_NODES = 1 << 9;
+
+    private static final VarHandle VERSIONS =
+            MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final class Table {
+        private final int mask;
+        private final long seed1, seed2;
+        private final int[] hashes;
+        private final Object[] entries;   // key of slot i at 2i, its value at 2i + 1
+
+        private Table(int noBuckets, long seed1, long seed2) {
+            this.mask = noBuckets - 1;
+            this.seed1 = seed1;
+            this.seed2 = seed2;
+            this.hashes = new int[noBuckets * SLOTS];
+            this.entries = new Object[2 * noBuckets * SLOTS];
+        }
+
+        private int bucket1(int h) { return (int) BloomFilter.mix(h ^ seed1) & mask; }
+        private int bucket2(int h) { return (int) BloomFilter.mix(h ^ seed2) & mask; }
+
+        private int alternate(int bucket, int h) {
+            int b1 = bucket1(h);
+            return b1 == bucket ? bucket2(h) : b1;
+        }
+
+        private int find(int bucket, int h, Object key) {
+            for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+                Object k = entries[2 * i];
+                if (hashes[i] == h && k != null && k.equals(key))
+                    return i;
+            }
+            return -1;
+        }
+
+        private int freeSlot(int bucket) {
+            for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+                if (entries[2 * i] == null)
+                    return i;
+            }
+            return -1;
+        }
+    }
+
+    private final long[] versions = new long[STRIPES * PAD];
+    private volatile Table table;
+    private final LongAdder size = new LongAdder();
+
+    public ConcurrentCuckooHash(int size) {
+        int buckets = Math.max(1, (size + SLOTS - 1) / SLOTS);
+        buckets = Math.max(2, Integer.highestOneBit(Math.max(1, buckets - 1)) << 1);
+        table = new Table(buckets, 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL);
+    }
+
+    private static int stripe(int bucket) { return (bucket & (STRIPES - 1)) * PAD; }
+
+    private long version(int stripe) { return (long) VERSIONS.getAcquire(versions, stripe); }
+
+    private void lock(int stripe) {
+        while (true) {
+            long v = version(stripe);
+            if ((v & 1) == 0 && VERSIONS.compareAndSet(versions, stripe, v, v + 1))
+                return;
+            Thread.onSpinWait();
+        }
+    }
+
+    private void unlock(int stripe) {
+        VERSIONS.setRelease(versions, stripe, (long) VERSIONS.get(versions, stripe) + 1);
+    }
+
+    /*
+     * Locks the stripes of two buckets in stripe order, so that writers
+     * never deadlock. Returns false (holding nothing) if the table was
+     * replaced while waiting.
+     */
+    private boolean lockPair(Table t, int b1, int b2) {
+        int s1 = Math.min(stripe(b1), stripe(b2)), s2 = Math.max(stripe(b1), stripe(b2));
+        lock(s1);
+        if (s2 != s1)
+            lock(s2);
+        if (table != t) {
+            unlockPair(b1, b2);
+            return false;
+        }
+        return true;
+    }
+
+    private void unlockPair(int b1, int b2) {
+        int s1 = stripe(b1), s2 = stripe(b2);
+        unlock(s1);
+        if (s2 != s1)
+            unlock(s2);
+    }
+
+    public long size() { return size.sum(); }
+
+    public int mapSize() { return (table.mask + 1) * SLOTS; }
+
+    /*
+     * Optimistic, lock-free read: retried if a writer touched either bucket
+     * of the key (or grew the table) while it was being read.
+     */
+    public V get(K key) {
+        int h = key.hashCode();
+        while (true) {
+            Table t = table;
+            int b1 = t.bucket1(h), b2 = t.bucket2(h);
+            int s1 = stripe(b1), s2 = stripe(b2);
+            long v1 = version(s1), v2 = version(s2);
+            if (((v1 | v2) & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            int slot = t.find(b1, h, key);
+            if (slot < 0)
+                slot = t.find(b2, h, key);
+            Object value = slot < 0 ? null : t.entries[2 * slot + 1];
+            VarHandle.acquireFence();
+            if (version(s1) == v1 && version(s2) == v2 && table == t)
+                return (V) value;
+        }
+    }
+
+    public boolean remove(K key) {
+        int h = key.hashCode();
+        while (true) {
+            Table t = table;
+            int b1 = t.bucket1(h), b2 = t.bucket2(h);
+            if (!lockPair(t, b1, b2))
+                continue;
+            try {
+                int slot = t.find(b1, h, key);
+                if (slot < 0)
+                    slot = t.find(b2, h, key);
+                if (slot < 0)
+                    return false;
+                t.entries[2 * slot] = null;
+                t.entries[2 * slot + 1] = null;
+                size.decrement();
+                return true;
+            } finally {
+                unlockPair(b1, b2);
+            }
+        }
+    }
+
+    public void put(K key, V value) {
+        int h = key.hashCode();
+        while (true) {
+            Table t = table;
+            int b1 = t.bucket1(h), b2 = t.bucket2(h);
+            if (!lockPair(t, b1, b2))
+                continue;
+            try {
+                int slot = t.find(b1, h, key);
+                if (slot < 0)
+                    slot = t.find(b2, h, key);
+                if (slot >= 0) {
+                    t.entries[2 * slot + 1] = value;
+                    return;
+                }
+                slot = t.freeSlot(b1);
+                if (slot < 0)
+                    slot = t.freeSlot(b2);
+                if (slot >= 0) {
+                    t.hashes[slot] = h;
+                    t.entries[2 * slot + 1] = value;
+                    t.entries[2 * slot] = key;
+                    size.increment();
+                    return;
+                }
+            } finally {
+                unlockPair(b1, b2);
+            }
+
+            // Both buckets are full: make room along a cuckoo path, or grow
+            // if there is no short one, then try again.
+            int[] path = findPath(t, b1, b2);
+            if (path == null)
+                grow(t);
+            else
+                movePath(t, path);
+        }
+    }
+
+    /*
+     * Breadth-first search, without locks, for a path of evictions from b1
+     * or b2 to a bucket with a free slot. Returns the path as the list of
+     * (bucket, slot) pairs to empty, from the free end back to b1/b2, or
+     * null if there is none within MAX_BFS_DEPTH moves.
+     */
+    private int[] findPath(Table t, int b1, int b2) {
+        int[] bucket = new int[MAX_BFS_NODES];
+        int[] parent = new int[MAX_BFS_NODES];
+        int[] slot = new int[MAX_BFS_NODES];   // slot of the parent bucket moved into this one
+        int[] depth = new int[MAX_BFS_NODES];
+        bucket[0] = b1;
+        bucket[1] = b2;
+        parent[0] = parent[1] = -1;
+        int head = 0, tail = 2;
+        while (head < tail) {
+            int node = head++;
+            if (depth[node] >= MAX_BFS_DEPTH)
+                continue;
+            int b = bucket[node];
+            for (int i = b * SLOTS, end = i + SLOTS; i < end && tail < MAX_BFS_NODES; i++) {
+                if (t.entries[2 * i] == null)
+                    continue;
+                int alt = t.alternate(b, t.hashes[i]);
+                bucket[tail] = alt;
+                parent[tail] = node;
+                slot[tail] = i;
+                depth[tail] = depth[node] + 1;
+                if (t.freeSlot(alt) >= 0) {
+                    // found: collect the moves, free end first
+                    int[] path = new int[2 * depth[tail]];
+                    int n = 0;
+                    for (int x = tail; parent[x] >= 0; x = parent[x]) {
+                        path[n++] = bucket[parent[x]];
+                        path[n++] = slot[x];
+                    }
+                    return path;
+                }
+                tail++;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Carries out the moves of a path found by findPath(), each under the
+     * locks of its two buckets, after checking that the entry to move and
+     * the free slot are still there. Gives up (the caller just retries) as
+     * soon as another writer got in the way.
+     */
+    private void movePath(Table t, int[] path) {
+        for (int n = 0; n < path.length; n += 2) {
+            int from = path[n], slot = path[n + 1];
+            Object key = t.entries[2 * slot];
+            if (key == null)
+                return;
+            int to = t.alternate(from, t.hashes[slot]);
+            if (!lockPair(t, from, to))
+                return;
+            try {
+                int free = t.freeSlot(to);
+                if (t.entries[2 * slot] != key || free < 0)
+                    return;
+                t.hashes[free] = t.hashes[slot];
+                t.entries[2 * free + 1] = t.entries[2 * slot + 1];
+                t.entries[2 * free] = key;
+                t.entries[2 * slot] = null;
+                t.entries[2 * slot + 1] = null;
+            } finally {
+                unlockPair(from, to);
+            }
+        }
+    }
+
+    /*
+     * Doubles the table under all stripe locks. Does nothing if another
+     * writer already replaced 't'.
+     */
+    private void grow(Table t) {
+        for (int s = 0; s < STRIPES; s++)
+            lock(s * PAD);
+        try {
+            if (table != t)
+                return;
+            // Nine keys with equal hashCode() share both buckets, which no
+            // seed or size can fix; don't grow forever.
+            if ((t.mask + 1L) * SLOTS > 8 * (size.sum() + 16))
+                throw new IllegalStateException("Too many keys with equal hashCode()");
+            int noBuckets = (t.mask + 1) * 2;
+            long seed1 = t.seed1, seed2 = t.seed2;
+            while (true) {
+                Table next = new Table(noBuckets, seed1, seed2);
+                if (rehashInto(t, next)) {
+                    table = next;
+                    return;
+                }
+                seed1 = BloomFilter.mix(seed1 + 1);
+                seed2 = BloomFilter.mix(seed2 + 1);
+                noBuckets *= 2;
+            }
+        } finally {
+            for (int s = STRIPES - 1; s >= 0; s--)
+                unlock(s * PAD);
+        }
+    }
+
+    /*
+     * Single-threaded reinsert (all stripes are held), using the same
+     * random-walk eviction as BucketizedCuckooHash.
+     */
+    private static boolean rehashInto(Table from, Table to) {
+        for (int i = 0; i < from.hashes.length; i++) {
+            Object key = from.entries[2 * i];
+            if (key == null)
+                continue;
+            int h = from.hashes[i];
+            Object value = from.entries[2 * i + 1];
+            int bucket = to.bucket1(h);
+            int kicks = 0;
+            while (true) {
+                int free = to.freeSlot(bucket);
+                if (free < 0)
+                    free = to.freeSlot(bucket = to.alternate(bucket, h));
+                if (free >= 0) {
+                    to.hashes[free] = h;
+                    to.entries[2 * free] = key;
+                    to.entries[2 * free + 1] = value;
+                    break;
+                }
+                if (++kicks > 500)
+                    return false;
+                int victim = bucket * SLOTS + (kicks & (SLOTS - 1));
+                int vh = to.hashes[victim];
+                Object vk = to.entries[2 * victim], vv = to.entries[2 * victim + 1];
+                to.hashes[victim] = h;
+                to.entries[2 * victim] = key;
+                to.entries[2 * victim + 1] = value;
+                h = vh;
+                key = vk;
+                value = vv;
+                bucket = to.alternate(bucket, h);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Counting variant of the bloom filter in 'BloomFilter.java', which
+ *   supports remove(). Each bit of the classic filter is replaced by a
+ *   4-bit counter, packed sixteen to a long, so the filter takes 4x the
+ *   memory of a plain one.
+ *
+ *   Counters saturate at 15. A saturated counter is never decremented
+ *   again, since its true value is no longer known; this can only cause
+ *   false positives, never false negatives.
+ *
+ *   As with BloomFilter, any number of threads may call contains() on a
+ *   filter that is no longer changing; add() and remove() need to be
+ *   synchronized by the caller.
+ *
+ ********************************************************************/
+
+class CountingBloomFilter {
+    private static final int MAX_HASHES = 8;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] data;
+    private final int noHashes;
+    private final int hashMask;
+    private final BloomFilter.HashMode mode;
+    private final int[] counterNos;   // scratch for add/remove, so they don't allocate
+
+    public CountingBloomFilter(int log2noCounters, int noHashes) {
+        this(log2noCounters, noHashes, BloomFilter.HashMode.PER_INDEX_TABLES);
+    }
+
+    public CountingBloomFilter(int log2noCounters, int noHashes, BloomFilter.HashMode mode) {
+        if (log2noCounters < 1 || log2noCounters > 31)
+            throw new IllegalArgumentException("Invalid number of counters");
+        if (noHashes < 1 || noHashes > MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        this.data = new long[(int) Math.max(1, (1L << log2noCounters) >>> 4)];
+        this.noHashes = noHashes;
+        this.hashMask = (1 << log2noCounters) - 1;
+        this.mode = mode;
+        this.counterNos = new int[noHashes];
+    }
+
+    private int count(int counterNo) {
+        return (int) (data[counterNo >>> 4] >>> ((counterNo & 15) << 2)) & MAX_COUNT;
+    }
+
+    public void add(String s) {
+        BloomFilter.bitNumbers(s, noHashes, hashMask, mode, counterNos);
+        for (int n = 0; n < noHashes; n++) {
+            int c = counterNos[n];
+            if (count(c) != MAX_COUNT)
+                data[c >>> 4] += 1L << ((c & 15) << 2);
+        }
+    }
+
+    /*
+     * Same counter numbers as BloomFilter.bitNumbers(), computed into
+     * locals rather than the scratch array, so that concurrent probes
+     * don't overwrite each other's.
+     */
+    public boolean contains(String s) {
+        if (mode == BloomFilter.HashMode.SINGLE_PASS) {
+            long lanes = BloomFilter.lanes(s, 0, 1, true);
+            int h1 = (int) lanes;
+            int h2 = (int) (lanes >>> 32) | 1;
+            for (int n = 0; n < noHashes; n++) {
+                if (count(h1 & hashMask) == 0)
+                    return false;
+                h1 += h2;
+            }
+            return true;
+        }
+        for (int n = 0; n < noHashes; n += 2) {
+            long lanes = BloomFilter.lanes(s, n, n + 1, false);
+            if (count((int) lanes & hashMask) == 0)
+                return false;
+            if (n + 1 < noHashes && count((int) (lanes >>> 32) & hashMask) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Removes one occurrence of a previously added key. Returns false, and
+     * leaves the filter unchanged, if the key is definitely not present.
+     * Removing a key that was never added (but tests as a false positive)
+     * corrupts the filter, as with any counting bloom filter.
+     */
+    public boolean remove(String s) {
+        BloomFilter.bitNumbers(s, noHashes, hashMask, mode, counterNos);
+        for (int n = 0; n < noHashes; n++) {
+            if (count(counterNos[n]) == 0)
+                return false;
+        }
+        for (int n = 0; n < noHashes; n++) {
+            int c = counterNos[n];
+            if (count(c) != MAX_COUNT)
+                data[c >>> 4] -= 1L << ((c & 15) << 2);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,208 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Cuckoo filter (Fan et al., "Cuckoo Filter: Practically Better Than
+ *   Bloom"), an approximate membership filter that, unlike BloomFilter,
+ *   supports remove() at 1x the memory (CountingBloomFilter needs 4x).
+ *
+ *   It keeps a short fingerprint of each key in a table of 4-slot buckets,
+ *   as in BucketizedCuckooHash. Since only the fingerprint is stored, the
+ *   alternate bucket of an entry has to be derived from the fingerprint
+ *   alone (partial-key cuckoo hashing):
+ *
+ *      b1 = hash(key),   b2 = b1 ^ hash(fingerprint)
+ *
+ *   so either bucket gives the other one, and an eviction walk like the
+ *   one in CuckooHash.put() can move fingerprints without their keys.
+ *
+ *   With f-bit fingerprints and 2 buckets of 4 slots per lookup, the
+ *   false positive rate is at most 8 / 2^f; the fingerprints are bit
+ *   packed, so at 95% occupancy a key costs f / 0.95 bits.
+ *
+ ********************************************************************/
+
+import java.util.SplittableRandom;
+
+class CuckooFilter {
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+
+    private final long[] data;
+    private final int fingerprintBits;
+    private final long fingerprintMask;
+    private final int bucketMask;
+    private final SplittableRandom random = new SplittableRandom(0x5DEECE66DL);
+    private long size = 0;
+
+    // The fingerprint left homeless by an add() that ran out of kicks (0
+    // if none); it is still counted as present, but the filter is full.
+    private int victim = 0;
+    private int victimBucket;
+
+    public CuckooFilter(int log2noBuckets, int fingerprintBits) {
+        if (log2noBuckets < 1 || log2noBuckets > 28)
+            throw new IllegalArgumentException("Invalid number of buckets");
+        if (fingerprintBits < 2 || fingerprintBits > 32)
+            throw new IllegalArgumentException("Invalid number of fingerprint bits");
+
+        long bits = (long) SLOTS * fingerprintBits << log2noBuckets;
+        this.data = new long[(int) ((bits + 63) >>> 6) + 1];
+        this.fingerprintBits = fingerprintBits;
+        this.fingerprintMask = (1L << fingerprintBits) - 1;
+        this.bucketMask = (1 << log2noBuckets) - 1;
+    }
+
+    private int fingerprint(int slot) {
+        long bitNo = (long) slot * fingerprintBits;
+        int word = (int) (bitNo >>> 6), shift = (int) bitNo & 63;
+        long v = data[word] >>> shift;
+        if (shift + fingerprintBits > 64)
+            v |= data[word + 1] << (64 - shift);
+        return (int) (v & fingerprintMask);
+    }
+
+    private void setFingerprint(int slot, int fp) {
+        long bitNo = (long) slot * fingerprintBits;
+        int word = (int) (bitNo >>> 6), shift = (int) bitNo & 63;
+        long v = fp & fingerprintMask;
+        data[word] = (data[word] & ~(fingerprintMask << shift)) | (v << shift);
+        if (shift + fingerprintBits > 64) {
+            int low = 64 - shift;   // bits that went into the first word
+            data[word + 1] = (data[word + 1] & ~(fingerprintMask >>> low)) | (v >>> low);
+        }
+    }
+
+    private static long hash(String s) {
+        return BloomFilter.mix(BloomFilter.hashCode(s, 0));
+    }
+
+    // 0 marks an empty slot, so fingerprints are never 0
+    private int fingerprintOf(long h) {
+        int fp = (int) ((h >>> 32) & fingerprintMask);
+        return fp == 0 ? 1 : fp;
+    }
+
+    private int alternate(int bucket, int fp) {
+        return (bucket ^ (int) BloomFilter.mix(fp)) & bucketMask;
+    }
+
+    private boolean insert(int bucket, int fp) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (fingerprint(i) == 0) {
+                setFingerprint(i, fp);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean find(int bucket, int fp) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (fingerprint(i) == fp)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean delete(int bucket, int fp) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (fingerprint(i) == fp) {
+                setFingerprint(i, 0);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Adds a key. Adding the same key twice stores its fingerprint twice
+     * (it then takes two remove()'s). Returns false, without adding, once
+     * the filter is full: when an earlier add() ended in MAX_KICKS
+     * evictions, the last evicted fingerprint is kept aside as the victim
+     * and no further keys are taken until a remove() makes room.
+     */
+    public boolean add(String s) {
+        if (victim != 0)
+            return false;
+        long h = hash(s);
+        int fp = fingerprintOf(h);
+        int b1 = (int) h & bucketMask, b2 = alternate(b1, fp);
+        size++;
+        if (insert(b1, fp) || insert(b2, fp))
+            return true;
+
+        int bucket = random.nextBoolean() ? b1 : b2;
+        for (int kicks = 0; kicks < MAX_KICKS; kicks++) {
+            int slot = bucket * SLOTS + random.nextInt(SLOTS);
+            int evicted = fingerprint(slot);
+            setFingerprint(slot, fp);
+            fp = evicted;
+            bucket = alternate(bucket, fp);
+            if (insert(bucket, fp))
+                return true;
+        }
+        victim = fp;
+        victimBucket = bucket;
+        return true;
+    }
+
+    public boolean contains(String s) {
+        long h = hash(s);
+        int fp = fingerprintOf(h);
+        int b1 = (int) h & bucketMask, b2 = alternate(b1, fp);
+        if (victim == fp && (victimBucket == b1 || victimBucket == b2))
+            return true;
+        return find(b1, fp) || find(b2, fp);
+    }
+
+    /*
+     * Removes one occurrence of a previously added key. Returns false if
+     * the key is definitely not present. As with CountingBloomFilter,
+     * removing a key that was never added (but tests as a false positive)
+     * removes some other key's fingerprint.
+     */
+    public boolean remove(String s) {
+        long h = hash(s);
+        int fp = fingerprintOf(h);
+        int b1 = (int) h & bucketMask, b2 = alternate(b1, fp);
+        if (victim == fp && (victimBucket == b1 || victimBucket == b2)) {
+            victim = 0;
+            size--;
+            return true;
+        }
+        if (!delete(b1, fp) && !delete(b2, fp))
+            return false;
+        size--;
+
+        // The freed slot may take the victim back
+        if (victim != 0) {
+            int alt = alternate(victimBucket, victim);
+            if (insert(victimBucket, victim) || insert(alt, victim))
+                victim = 0;
+        }
+        return true;
+    }
+
+    public long size() { return size; }
+
+    public boolean isFull() { return victim != 0; }
+
+    public long noSlots() { return (long) SLOTS * (bucketMask + 1); }
+
+    public long noBits() { return noSlots() * fingerprintBits; }
+
+    public double loadFactor() { return size / (double) noSlots(); }
+
+    public double bitsPerItem() { return noBits() / (double) size; }
+
+    /*
+     * Upper bound on the false positive rate at the current load: a lookup
+     * compares against the (at most 8) fingerprints of its two buckets,
+     * each matching with probability 1 / (2^f - 1).
+     */
+    public double falsePositiveRateBound() {
+        double occupied = 2 * SLOTS * Math.min(1, loadFactor());
+        return 1 - Math.pow(1 - 1 / (double) fingerprintMask, occupied);
+    }
+}
@@ -7,7 +7,11 @@
  *
  ********************************************************************/
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.lang.Math;
 
 @SuppressWarnings("unchecked")
@@ -17,10 +21,52 @@ public class CuckooHash<K, V> {
     private int a = 37, b = 17;
     private int insertionCounter = 0;
 
+    // Number of entries, and the entries in insertion order, as a list
+    // linked through the buckets themselves.
+    private int count = 0;
+    private Bucket<K, V> first = null, last = null;
+
+    // Number of distinct keys, for keys().size(). Not kept in bounded
+    // cache mode, where every key is held once and it equals 'count'.
+    private int distinct = 0;
+
+    // Seeded mode, see CuckooHash(int, long). The capacity is a power of
+    // two and the two hash functions are independently seeded mixes of the
+    // key's hashCode().
+    private static final int MAX_RESEEDS = 4;
+    private final boolean seeded;
+    private final SplittableRandom seeds;
+    private long seed1, seed2;
+
+    // Seeded mode grows incrementally: while 'oldTable' is not null its
+    // entries are being moved to 'table', MIGRATE_STEP slots per put or
+    // remove, and lookups check both. Entries that fail to place wait in
+    // a small stash.
+    private static final int MIGRATE_STEP = 8;
+    private static final int STASH_SIZE = 4;
+    private Bucket<K, V>[] oldTable = null;
+    private int oldCapacity, migrated;
+    private long oldSeed1, oldSeed2;
+    private final List<Bucket<K, V>> stash = new ArrayList<>();
+
+    // Occupancy bulk loads size the table for; two-choice cuckoo hashing
+    // stops working a little below 1/2.
+    private static final double LOAD_FACTOR = 0.45;
+
+    // Bounded cache mode, see boundedCache(). The table never grows; the
+    // CLOCK hand sweeps the slots for an entry to evict.
+    private boolean bounded = false;
+    private int maxEntries;
+    private int hand = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+
     private class Bucket<K, V> {
         private K bucKey = null;
         private V value = null;
         private int insertionOrder;
+        private Bucket<K, V> prev = null, next = null;
+        private boolean referenced = false;   // cache mode: CLOCK reference bit
+        private long expiresAt = 0;           // cache mode: System.nanoTime() deadline, 0 if none
         
         public Bucket(K k, V v, int order) {
             bucKey = k; 
@@ -33,75 +79,544 @@ public class CuckooHash<K, V> {
         private int getInsertionOrder() { return insertionOrder; }
     }
 
-    private int hash1(K key) { return Math.abs(key.hashCode()) % CAPACITY; }
-    private int hash2(K key) { return (a * b + Math.abs(key.hashCode())) % CAPACITY; }
+    private int hash1(K key) {
+        if (seeded)
+            return position(key, seed1, CAPACITY);
+        return Math.abs(key.hashCode()) % CAPACITY;
+    }
+
+    private int hash2(K key) {
+        if (seeded)
+            return position(key, seed2, CAPACITY);
+        return (a * b + Math.abs(key.hashCode())) % CAPACITY;
+    }
+
+    private static int position(Object key, long seed, int capacity) {
+        return (int) BloomFilter.mix(key.hashCode() ^ seed) & (capacity - 1);
+    }
+
+    // Java has no generic array creation, so every Bucket array is made here
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private Bucket<K, V>[] newTable(int capacity) {
+        return new Bucket[capacity];
+    }
 
     public CuckooHash(int size) {
         CAPACITY = size;
-        table = new Bucket[CAPACITY];
+        table = newTable(CAPACITY);
+        seeded = false;
+        seeds = null;
     }
 
-    public int size() {
-        int count = 0;
-        for (int i = 0; i < CAPACITY; ++i) {
-            if (table[i] != null)
-                count++;     
-        }
-        return count;
+    /*
+     * Seeded mode. Unlike the default hash1/hash2 above, where hash2 is
+     * hash1 shifted by a constant (so keys colliding in one collide in the
+     * other as well), the two hash functions are independent. The capacity
+     * is rounded up to a power of two so positions are taken with a mask.
+     * An entry a cycle leaves without a slot waits in a small stash; once
+     * the stash is full the table doubles, incrementally (see
+     * stashOrGrow()). Re-seeding the hash functions in place, see
+     * reseed(), is only the last resort when that fails too.
+     */
+    public CuckooHash(int size, long seed) {
+        CAPACITY = Math.max(2, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        table = newTable(CAPACITY);
+        seeded = true;
+        seeds = new SplittableRandom(seed);
+        seed1 = seeds.nextLong();
+        seed2 = seeds.nextLong();
     }
 
+    public int size() { return count; }
+
     public void clear() {
-        table = new Bucket[CAPACITY]; 
+        table = newTable(CAPACITY); 
         insertionCounter = 0;
+        oldTable = null;
+        stash.clear();
+        count = 0;
+        distinct = 0;
+        first = last = null;
+    }
+
+    private void link(Bucket<K, V> bucket) {
+        bucket.prev = last;
+        bucket.next = null;
+        if (last == null)
+            first = bucket;
+        else
+            last.next = bucket;
+        last = bucket;
+        count++;
+    }
+
+    private void unlink(Bucket<K, V> bucket) {
+        if (bucket.prev == null)
+            first = bucket.next;
+        else
+            bucket.prev.next = bucket.next;
+        if (bucket.next == null)
+            last = bucket.prev;
+        else
+            bucket.next.prev = bucket.prev;
+        bucket.prev = bucket.next = null;
+        count--;
     }
 
     public int mapSize() { return CAPACITY; }
 
+    /*
+     * Live, read-only view of the values in insertion order. It walks the
+     * entries' order list, so nothing is copied or sorted; the view should
+     * not be iterated while the table is being modified.
+     */
     public List<V> values() {
-        List<Bucket<K, V>> buckets = new ArrayList<>();
-        for (int i = 0; i < CAPACITY; ++i) {
-            if (table[i] != null) {
-                buckets.add(table[i]);
+        return new AbstractSequentialList<V>() {
+            public int size() { return count; }
+
+            public ListIterator<V> listIterator(int index) {
+                if (index < 0 || index > count)
+                    throw new IndexOutOfBoundsException("Index: " + index);
+                return new ValueCursor(index);
+            }
+        };
+    }
+
+    private class ValueCursor implements ListIterator<V> {
+        private Bucket<K, V> next = first;
+        private int nextIndex = 0;
+
+        private ValueCursor(int index) {
+            while (nextIndex < index) {
+                next = next.next;
+                nextIndex++;
             }
         }
-        buckets.sort(Comparator.comparingInt(Bucket::getInsertionOrder));
-        List<V> values = new ArrayList<>();
-        for (Bucket<K, V> bucket : buckets) {
-            values.add(bucket.getValue());
+
+        public boolean hasNext() { return next != null; }
+        public boolean hasPrevious() { return nextIndex > 0; }
+        public int nextIndex() { return nextIndex; }
+        public int previousIndex() { return nextIndex - 1; }
+
+        public V next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            V value = next.getValue();
+            next = next.next;
+            nextIndex++;
+            return value;
+        }
+
+        public V previous() {
+            if (nextIndex == 0)
+                throw new NoSuchElementException();
+            next = next == null ? last : next.prev;
+            nextIndex--;
+            return next.getValue();
         }
-        return values;
+
+        public void remove() { throw new UnsupportedOperationException(); }
+        public void set(V v) { throw new UnsupportedOperationException(); }
+        public void add(V v) { throw new UnsupportedOperationException(); }
     }
 
+    /*
+     * Live, read-only view of the distinct keys. A key put with several
+     * values is reported once, for its oldest entry; finding the other
+     * entries of a key only takes a look at its positions, since they are
+     * the only places it can be.
+     */
     public Set<K> keys() {
-        Set<K> allKeys = new HashSet<K>();
-        for (int i = 0; i < CAPACITY; ++i) {
-            if (table[i] != null) {
-                allKeys.add(table[i].getBucKey());
+        return new AbstractSet<K>() {
+            public int size() { return bounded ? count : distinct; }
+
+            public boolean contains(Object key) {
+                return findBucket((K) key) != null;
+            }
+
+            public Iterator<K> iterator() {
+                return new Iterator<K>() {
+                    private Bucket<K, V> next = skip(first);
+
+                    private Bucket<K, V> skip(Bucket<K, V> b) {
+                        while (b != null && !isOldestOfKey(b))
+                            b = b.next;
+                        return b;
+                    }
+
+                    public boolean hasNext() { return next != null; }
+
+                    public K next() {
+                        if (next == null)
+                            throw new NoSuchElementException();
+                        K key = next.getBucKey();
+                        next = skip(next.next);
+                        return key;
+                    }
+                };
             }
+        };
+    }
+
+    private boolean isOldestOfKey(Bucket<K, V> bucket) {
+        K key = bucket.getBucKey();
+        int order = bucket.getInsertionOrder();
+        if (isOlder(table[hash1(key)], key, order) || isOlder(table[hash2(key)], key, order))
+            return false;
+        if (oldTable != null
+                && (isOlder(oldTable[position(key, oldSeed1, oldCapacity)], key, order)
+                    || isOlder(oldTable[position(key, oldSeed2, oldCapacity)], key, order)))
+            return false;
+        for (Bucket<K, V> other : stash) {
+            if (isOlder(other, key, order))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isOlder(Bucket<K, V> other, K key, int order) {
+        return other != null && other.getInsertionOrder() < order && other.getBucKey().equals(key);
+    }
+
+    /*
+     * Bounded cache mode: a seeded table (see CuckooHash(int, long)) that
+     * holds at most 'maxEntries' entries and never grows. When it is full,
+     * or a put ends in a cycle, an entry is evicted with the CLOCK algorithm:
+     * get() sets an entry's reference bit, and an entry is only evicted
+     * once the sweep finds its bit cleared, so recently read entries get a
+     * second chance. Entries may also expire, see put(K, V, long).
+     *
+     * Unlike the other modes a key is held once: putting an existing key
+     * replaces its value.
+     */
+    public static <K, V> CuckooHash<K, V> boundedCache(int maxEntries, long seed) {
+        if (maxEntries < 1)
+            throw new IllegalArgumentException("Invalid number of entries");
+        CuckooHash<K, V> cache = new CuckooHash<>(seededCapacity(maxEntries), seed);
+        cache.bounded = true;
+        cache.maxEntries = maxEntries;
+        return cache;
+    }
+
+    /*
+     * Cache mode: puts an entry that expires after 'ttlMillis' (no expiry if
+     * 0). Expired entries are dropped when they are next read, and are the
+     * first ones evicted.
+     */
+    public void put(K key, V value, long ttlMillis) {
+        if (!bounded)
+            throw new IllegalStateException("Expiry needs a bounded cache");
+        if (ttlMillis < 0)
+            throw new IllegalArgumentException("Invalid time to live");
+
+        Bucket<K, V> bucket = findBucket(key);
+        if (bucket == null) {
+            if (count >= maxEntries)
+                evict();
+            bucket = new Bucket<>(key, value, insertionCounter++);
+            link(bucket);
+            Bucket<K, V> homeless = place(bucket, maxKicks());
+            if (homeless != null)
+                evictForCycle(homeless);
+        }
+        bucket.value = value;
+        bucket.expiresAt = ttlMillis == 0 ? 0 : Math.max(1, System.nanoTime() + ttlMillis * 1000000);
+    }
+
+    private boolean isExpired(Bucket<K, V> bucket) {
+        return bucket.expiresAt != 0 && System.nanoTime() - bucket.expiresAt >= 0;
+    }
+
+    /*
+     * Advances the CLOCK hand to the first entry that is expired or has its
+     * reference bit clear, clearing the bits it passes, and evicts it. Ends
+     * within two sweeps of the table.
+     */
+    private void evict() {
+        while (true) {
+            Bucket<K, V> bucket = table[hand];
+            int pos = hand;
+            hand = (hand + 1) & (CAPACITY - 1);
+            if (bucket == null)
+                continue;
+            if (bucket.referenced && !isExpired(bucket)) {
+                bucket.referenced = false;
+                continue;
+            }
+            table[pos] = null;
+            unlink(bucket);
+            evictions++;
+            return;
+        }
+    }
+
+    /*
+     * An insert ended in a cycle, leaving 'homeless' without a slot. Rather
+     * than grow, the homeless entry takes the place of whichever occupant
+     * of its two positions CLOCK would evict first, or is itself dropped
+     * if both have been read since the hand last passed them.
+     */
+    private void evictForCycle(Bucket<K, V> homeless) {
+        int[] positions = { hash1(homeless.getBucKey()), hash2(homeless.getBucKey()) };
+        for (int pos : positions) {
+            Bucket<K, V> occupant = table[pos];
+            if (occupant != null && occupant.referenced && !isExpired(occupant)) {
+                occupant.referenced = false;
+                continue;
+            }
+            if (occupant != null) {
+                unlink(occupant);
+                evictions++;
+            }
+            table[pos] = homeless;
+            return;
         }
-        return allKeys;
+        unlink(homeless);
+        evictions++;
     }
 
+    public long hitCount() { return hits; }
+
+    public long missCount() { return misses; }
+
+    public long evictionCount() { return evictions; }
+
     public void put(K key, V value) {
+        if (bounded) {
+            put(key, value, 0);
+            return;
+        }
+
+        if (seeded)
+            migrate(MIGRATE_STEP);
+
         // Check if this exact key-value pair already exists
-        if (get(key) != null && get(key).equals(value)) {
+        Bucket<K, V> bucket = findBucket(key);
+        V existing = bucket == null ? null : bucket.getValue();
+        if (existing != null && existing.equals(value)) {
             return;
         }
+        if (bucket == null)
+            distinct++;
 
         Bucket<K, V> newBucket = new Bucket<>(key, value, insertionCounter++);
+        link(newBucket);
+        Bucket<K, V> homeless = place(newBucket, seeded ? maxKicks() : CAPACITY);
+        if (homeless == null)
+            return;
+
+        // If we get here, we have a cycle - rehash
+        if (seeded) {
+            stashOrGrow(homeless);
+            return;
+        }
+        unlink(homeless);
+        rehash();
+        put(homeless.getBucKey(), homeless.getValue());
+    }
+
+    /*
+     * Puts every entry of the map. If that takes the table past its load
+     * factor, the table is rebuilt once at a size that fits all entries,
+     * instead of growing through repeated cycles and rehashes. Entries
+     * keep their insertion order, the new ones after the old.
+     */
+    public void putAll(Map<? extends K, ? extends V> map) {
+        if (bounded || count + map.size() <= CAPACITY * LOAD_FACTOR) {
+            for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+                put(entry.getKey(), entry.getValue());
+            return;
+        }
+        List<Bucket<K, V>> buckets = new ArrayList<>(count + map.size());
+        for (Bucket<K, V> bucket = first; bucket != null; bucket = bucket.next)
+            buckets.add(bucket);
+        int existing = buckets.size();
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+            buckets.add(new Bucket<>(entry.getKey(), entry.getValue(), 0));
+        int capacity = seeded ? seededCapacity(buckets.size()) : (int) Math.ceil(buckets.size() / LOAD_FACTOR);
+        rebuild(buckets.toArray(newTable(buckets.size())), existing, Math.max(CAPACITY, capacity), false);
+    }
+
+    /*
+     * Builds a seeded table (see CuckooHash(int, long)) out of a stream of
+     * entries, sized for their number. If the stream is parallel, the bulk
+     * of the placement runs in parallel as well; see load().
+     */
+    public static <K, V> CuckooHash<K, V> bulkLoad(
+            Stream<? extends Map.Entry<? extends K, ? extends V>> entries, long seed) {
+        boolean parallel = entries.isParallel();
+        Object[] items = entries.toArray();
+        CuckooHash<K, V> map = new CuckooHash<>(seededCapacity(items.length), seed);
+        map.loadEntries(items, parallel);
+        return map;
+    }
+
+    private void loadEntries(Object[] items, boolean parallel) {
+        Bucket<K, V>[] buckets = newTable(items.length);
+        IntStream indexes = IntStream.range(0, items.length);
+        (parallel ? indexes.parallel() : indexes).forEach(i -> {
+            Map.Entry<? extends K, ? extends V> entry = (Map.Entry<? extends K, ? extends V>) items[i];
+            buckets[i] = new Bucket<>(entry.getKey(), entry.getValue(), i);
+        });
+        rebuild(buckets, 0, CAPACITY, parallel);
+    }
+
+    private static int seededCapacity(int noEntries) {
+        int capacity = (int) Math.ceil(noEntries / LOAD_FACTOR);
+        return Math.max(2, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+    }
+
+    /*
+     * Replaces the contents of the table with 'buckets', in that order, at
+     * 'capacity' or, if some entry can't be placed, the next capacities up
+     * (with new hash functions in seeded mode). Entries from index
+     * 'firstNew' on are dropped if put() would have dropped them. If the
+     * buckets can't be placed at all, the table is left as it was.
+     */
+    private void rebuild(Bucket<K, V>[] buckets, int firstNew, int capacity, boolean parallel) {
+        Bucket<K, V>[] previousTable = table, previousOldTable = oldTable;
+        List<Bucket<K, V>> previousStash = new ArrayList<>(stash);
+        Bucket<K, V> previousFirst = first, previousLast = last;
+        int previousCapacity = CAPACITY, previousCount = count;
+        long previousSeed1 = seed1, previousSeed2 = seed2;
+        CAPACITY = capacity;
+        while (true) {
+            table = newTable(CAPACITY);
+            oldTable = null;
+            stash.clear();
+            count = 0;
+            first = last = null;
+            if (load(buckets, firstNew, parallel)) {
+                distinct = 0;
+                for (Bucket<K, V> b = first; b != null; b = b.next) {
+                    if (isOldestOfKey(b))
+                        distinct++;
+                }
+                return;
+            }
+            if (!seeded) {
+                CAPACITY = (CAPACITY * 2) + 1;
+                continue;
+            }
+            if (CAPACITY >= 8 * buckets.length + 16) {
+                // load() links the buckets only once all are placed, so
+                // the order list and insertion orders are untouched
+                table = previousTable;
+                oldTable = previousOldTable;
+                stash.clear();
+                stash.addAll(previousStash);
+                first = previousFirst;
+                last = previousLast;
+                CAPACITY = previousCapacity;
+                count = previousCount;
+                seed1 = previousSeed1;
+                seed2 = previousSeed2;
+                throw new IllegalStateException("Too many keys with equal hashCode()");
+            }
+            CAPACITY *= 2;
+            seed1 = seeds.nextLong();
+            seed2 = seeds.nextLong();
+        }
+    }
+
+    /*
+     * Places 'buckets' into the empty table in two phases:
+     *
+     *   1. Every entry whose first position is free takes it. The positions
+     *      are split into ranges, and each range is filled by one task from
+     *      only the entries that hash into it, so the tasks never write the
+     *      same slot and can run in parallel. At the load factor used here
+     *      this places about 4 out of 5 entries.
+     *   2. The rest are put one by one, in insertion order, with the usual
+     *      eviction walk (and stash, in seeded mode).
+     *
+     * Returns false, leaving the table half built, if an entry could not be
+     * placed.
+     */
+    private boolean load(Bucket<K, V>[] buckets, int firstNew, boolean parallel) {
+        int n = buckets.length;
+        int parts = parallel ? 4 * Runtime.getRuntime().availableProcessors() : 1;
+        int[] home = new int[n];
+        IntStream indexes = IntStream.range(0, n);
+        (parallel ? indexes.parallel() : indexes).forEach(i -> home[i] = hash1(buckets[i].getBucKey()));
+        int[] start = new int[parts + 1];
+        for (int i = 0; i < n; i++)
+            start[partition(home[i], parts) + 1]++;
+        for (int p = 0; p < parts; p++)
+            start[p + 1] += start[p];
+
+        // Entries grouped by partition, in insertion order within each
+        int[] order = new int[n];
+        int[] next = Arrays.copyOf(start, parts);
+        for (int i = 0; i < n; i++)
+            order[next[partition(home[i], parts)]++] = i;
+
+        boolean[] pending = new boolean[n];
+        IntStream partitions = IntStream.range(0, parts);
+        (parallel ? partitions.parallel() : partitions).forEach(p -> {
+            for (int j = start[p]; j < start[p + 1]; j++) {
+                int i = order[j];
+                if (table[home[i]] == null)
+                    table[home[i]] = buckets[i];
+                else
+                    pending[i] = true;
+            }
+        });
+
+        boolean[] dropped = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            if (!pending[i])
+                continue;
+            Bucket<K, V> bucket = buckets[i];
+            if (i >= firstNew) {
+                V existing = get(bucket.getBucKey());
+                if (existing != null && existing.equals(bucket.getValue())) {
+                    dropped[i] = true;
+                    continue;
+                }
+            }
+            Bucket<K, V> homeless = place(bucket, seeded ? maxKicks() : CAPACITY);
+            if (homeless != null) {
+                if (!seeded || stash.size() == STASH_SIZE)
+                    return false;
+                stash.add(homeless);
+            }
+        }
+
+        insertionCounter = 0;
+        for (int i = 0; i < n; i++) {
+            if (!dropped[i]) {
+                buckets[i].insertionOrder = insertionCounter++;
+                link(buckets[i]);
+            }
+        }
+        return true;
+    }
+
+    private int partition(int position, int parts) {
+        return (int) ((long) position * parts / CAPACITY);
+    }
+
+    /*
+     * Places a bucket, evicting others along the way. Returns null on
+     * success, or the bucket left without a slot once 'maxIterations'
+     * evictions did not find a free slot.
+     */
+    private Bucket<K, V> place(Bucket<K, V> newBucket, int maxIterations) {
+        K key = newBucket.getBucKey();
         int pos1 = hash1(key);
         int pos2 = hash2(key);
 
         // Try to place in first position
         if (table[pos1] == null) {
             table[pos1] = newBucket;
-            return;
+            return null;
         }
 
         // Try to place in second position
         if (table[pos2] == null) {
             table[pos2] = newBucket;
-            return;
+            return null;
         }
 
         // Need to evict someone - start with first position
@@ -109,10 +624,10 @@ public class CuckooHash<K, V> {
         int currentPos = pos1;
         int iterations = 0;
 
-        while (iterations <= CAPACITY) {
+        while (iterations <= maxIterations) {
             if (table[currentPos] == null) {
                 table[currentPos] = current;
-                return;
+                return null;
             }
 
             // Swap current with existing
@@ -121,42 +636,163 @@ public class CuckooHash<K, V> {
             current = temp;
 
             // Move to alternate position
-            currentPos = (currentPos == hash1(current.getBucKey())) 
-                ? hash2(current.getBucKey()) 
+            currentPos = (currentPos == hash1(current.getBucKey()))
+                ? hash2(current.getBucKey())
                 : hash1(current.getBucKey());
 
             iterations++;
         }
+        return current;
+    }
 
-        // If we get here, we have a cycle - rehash
-        rehash();
-        put(current.getBucKey(), current.getValue());
+    /*
+     * With independent hash functions an eviction walk that has not ended
+     * after O(log n) steps is very likely a cycle.
+     */
+    private int maxKicks() {
+        return 16 + 4 * Integer.numberOfTrailingZeros(CAPACITY);
     }
 
     public V get(K key) {
+        Bucket<K, V> bucket = findBucket(key);
+        if (!bounded)
+            return bucket == null ? null : bucket.getValue();
+
+        if (bucket != null && isExpired(bucket)) {
+            table[table[hash1(key)] == bucket ? hash1(key) : hash2(key)] = null;
+            unlink(bucket);
+            bucket = null;
+        }
+        if (bucket == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        bucket.referenced = true;
+        return bucket.getValue();
+    }
+
+    private Bucket<K, V> findBucket(K key) {
         int pos1 = hash1(key);
         int pos2 = hash2(key);
         if (table[pos1] != null && table[pos1].getBucKey().equals(key))
-            return table[pos1].getValue();
+            return table[pos1];
         else if (table[pos2] != null && table[pos2].getBucKey().equals(key))
-            return table[pos2].getValue();
+            return table[pos2];
+        if (seeded)
+            return findMigrating(key);
         return null;
     }
 
+    /*
+     * Seeded mode: looks in the old table and the stash, for keys not yet
+     * moved to the current table.
+     */
+    private Bucket<K, V> findMigrating(K key) {
+        if (oldTable != null) {
+            Bucket<K, V> bucket = oldTable[position(key, oldSeed1, oldCapacity)];
+            if (bucket != null && bucket.getBucKey().equals(key))
+                return bucket;
+            bucket = oldTable[position(key, oldSeed2, oldCapacity)];
+            if (bucket != null && bucket.getBucKey().equals(key))
+                return bucket;
+        }
+        for (Bucket<K, V> bucket : stash) {
+            if (bucket.getBucKey().equals(key))
+                return bucket;
+        }
+        return null;
+    }
+
+    /*
+     * Unlinks an entry remove() has taken out of the table, and counts its
+     * key out if that was its last entry.
+     */
+    private void removed(Bucket<K, V> bucket) {
+        unlink(bucket);
+        if (findBucket(bucket.getBucKey()) == null)
+            distinct--;
+    }
+
     public boolean remove(K key, V value) {
+        if (seeded)
+            migrate(MIGRATE_STEP);
         int pos1 = hash1(key);
         int pos2 = hash2(key);
         if (table[pos1] != null && table[pos1].getValue().equals(value)) {
+            Bucket<K, V> bucket = table[pos1];
             table[pos1] = null;
+            removed(bucket);
             return true;
         }
         else if (table[pos2] != null && table[pos2].getValue().equals(value)) {
+            Bucket<K, V> bucket = table[pos2];
             table[pos2] = null;
+            removed(bucket);
             return true;
         }
+        if (oldTable != null) {
+            pos1 = position(key, oldSeed1, oldCapacity);
+            pos2 = position(key, oldSeed2, oldCapacity);
+            if (oldTable[pos1] != null && oldTable[pos1].getValue().equals(value)) {
+                Bucket<K, V> bucket = oldTable[pos1];
+                oldTable[pos1] = null;
+                removed(bucket);
+                return true;
+            }
+            else if (oldTable[pos2] != null && oldTable[pos2].getValue().equals(value)) {
+                Bucket<K, V> bucket = oldTable[pos2];
+                oldTable[pos2] = null;
+                removed(bucket);
+                return true;
+            }
+        }
+        for (int i = 0; i < stash.size(); i++) {
+            Bucket<K, V> bucket = stash.get(i);
+            if (bucket.getBucKey().equals(key) && bucket.getValue().equals(value)) {
+                removed(stash.remove(i));
+                return true;
+            }
+        }
         return false;
     }
 
+    /*
+     * Writes the table to 'path' as it is: the slot array, the hash
+     * functions and every entry encoded with the codecs. The snapshot is
+     * read back with open(); see MappedCuckooHash for the format. A seeded
+     * table that is in the middle of growing finishes first.
+     */
+    public void snapshot(Path path, OffHeapCuckooHash.Codec<K> keyCodec,
+                         OffHeapCuckooHash.Codec<V> valueCodec) throws IOException {
+        if (oldTable != null)
+            migrate(oldCapacity);
+        long[] slots = new long[CAPACITY];
+        long[] stashed = new long[stash.size()];
+        try (MappedCuckooHash.Writer writer = new MappedCuckooHash.Writer(path)) {
+            for (int i = 0; i < CAPACITY; ++i) {
+                if (table[i] != null)
+                    slots[i] = writer.record(keyCodec.encode(table[i].getBucKey()),
+                            valueCodec.encode(table[i].getValue()), table[i].getInsertionOrder());
+            }
+            for (int i = 0; i < stashed.length; i++) {
+                Bucket<K, V> bucket = stash.get(i);
+                stashed[i] = writer.record(keyCodec.encode(bucket.getBucKey()),
+                        valueCodec.encode(bucket.getValue()), bucket.getInsertionOrder());
+            }
+            writer.finish(seeded, CAPACITY, a, b, insertionCounter, seed1, seed2, count, slots, stashed);
+        }
+    }
+
+    /*
+     * Maps a snapshot written by snapshot() for lookups; nothing is
+     * reinserted, so this takes the same time for any number of entries.
+     */
+    public static <K, V> MappedCuckooHash<K, V> open(Path path, OffHeapCuckooHash.Codec<K> keyCodec,
+                                                     OffHeapCuckooHash.Codec<V> valueCodec) throws IOException {
+        return new MappedCuckooHash<>(path, keyCodec, valueCodec);
+    }
+
     public String printTable() {
         StringBuilder sb = new StringBuilder();
         sb.append("[ ");
@@ -177,8 +813,11 @@ public class CuckooHash<K, V> {
         Bucket<K, V>[] oldTable = table;
         int oldCapacity = CAPACITY;
         CAPACITY = (CAPACITY * 2) + 1;
-        table = new Bucket[CAPACITY];
+        table = newTable(CAPACITY);
         insertionCounter = 0;
+        count = 0;
+        distinct = 0;
+        first = last = null;
 
         for (int i = 0; i < oldCapacity; i++) {
             if (oldTable[i] != null) {
@@ -186,4 +825,125 @@ public class CuckooHash<K, V> {
             }
         }
     }
+
+    /*
+     * Seeded mode: a bucket that could not be placed goes to the stash. Only
+     * once the stash is full does the table start growing, incrementally:
+     * the current table becomes the old one, and migrate() moves its
+     * entries over a few at a time.
+     */
+    private void stashOrGrow(Bucket<K, V> homeless) {
+        if (stash.size() < STASH_SIZE) {
+            stash.add(homeless);
+            return;
+        }
+        if (oldTable == null) {
+            oldTable = table;
+            oldCapacity = CAPACITY;
+            oldSeed1 = seed1;
+            oldSeed2 = seed2;
+            migrated = 0;
+            CAPACITY *= 2;
+            table = newTable(CAPACITY);
+            seed1 = seeds.nextLong();
+            seed2 = seeds.nextLong();
+            homeless = place(homeless, maxKicks());
+            if (homeless == null)
+                return;
+        }
+
+        // Still no room, with the stash full and a migration under way;
+        // this is rare enough to settle with a full rebuild.
+        reseed(homeless);
+    }
+
+    /*
+     * Moves up to 'slots' slots of the old table to the current one. When
+     * the old table is done, the stash gets another chance as well.
+     */
+    private void migrate(int slots) {
+        if (oldTable == null)
+            return;
+        for (int end = Math.min(oldCapacity, migrated + slots); migrated < end; migrated++) {
+            Bucket<K, V> bucket = oldTable[migrated];
+            if (bucket == null)
+                continue;
+            oldTable[migrated] = null;
+            Bucket<K, V> homeless = place(bucket, maxKicks());
+            if (homeless != null) {
+                if (stash.size() == STASH_SIZE) {
+                    reseed(homeless);
+                    return;
+                }
+                stash.add(homeless);
+            }
+        }
+        if (migrated < oldCapacity)
+            return;
+        oldTable = null;
+        for (int i = stash.size() - 1; i >= 0; i--) {
+            Bucket<K, V> homeless = place(stash.get(i), maxKicks());
+            if (homeless == null)
+                stash.remove(i);
+            else
+                stash.set(i, homeless);
+        }
+    }
+
+    /*
+     * Seeded mode, last resort: rebuilds the table at once with fresh hash
+     * functions at the same capacity, and doubles the capacity only when
+     * MAX_RESEEDS attempts in a row still end in a cycle. Entries keep their
+     * insertion order; the bucket left homeless is still on the order list.
+     */
+    private void reseed(Bucket<K, V> homeless) {
+        List<Bucket<K, V>> entries = new ArrayList<>(count);
+        for (Bucket<K, V> bucket = first; bucket != null; bucket = bucket.next)
+            entries.add(bucket);
+        Bucket<K, V>[] previousTable = table, previousOldTable = oldTable;
+        List<Bucket<K, V>> previousStash = new ArrayList<>(stash);
+        int previousCapacity = CAPACITY;
+        long previousSeed1 = seed1, previousSeed2 = seed2;
+        oldTable = null;
+        stash.clear();
+
+        int attempts = 0;
+        while (true) {
+            if (attempts++ == MAX_RESEEDS) {
+                // Keys with equal hashCode() share both positions, which no
+                // seed or capacity can fix; don't grow forever. The table is
+                // left as it was, without the bucket that had no slot.
+                if (CAPACITY >= 8 * entries.size()) {
+                    table = previousTable;
+                    oldTable = previousOldTable;
+                    stash.clear();
+                    stash.addAll(previousStash);
+                    CAPACITY = previousCapacity;
+                    seed1 = previousSeed1;
+                    seed2 = previousSeed2;
+                    removed(homeless);
+                    throw new IllegalStateException("Too many keys with equal hashCode()");
+                }
+                CAPACITY *= 2;
+                attempts = 0;
+            }
+            seed1 = seeds.nextLong();
+            seed2 = seeds.nextLong();
+            table = newTable(CAPACITY);
+            stash.clear();
+            boolean placed = true;
+            for (Bucket<K, V> bucket : entries) {
+                Bucket<K, V> left = place(bucket, maxKicks());
+                if (left == null)
+                    continue;
+                if (stash.size() == STASH_SIZE) {
+                    placed = false;
+                    break;
+                }
+                stash.add(left);
+            }
+            if (placed)
+                return;
+        }
+    }
 }
@@ -0,0 +1,250 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   External-memory versions of sort2Arrays and findKthLargest, for
+ *   inputs given as files of raw little-endian ints that may be larger
+ *   than the heap. Files are memory-mapped a chunk at a time, so the
+ *   heap holds at most one chunk per worker thread whatever the size of
+ *   the input:
+ *
+ *     - sort() sorts each chunk in memory (in parallel, with
+ *       ProblemSolutions.sortInts()) into a temporary file of runs, then
+ *       streams a LoserTree merge of the mapped runs to the output;
+ *     - kthLargest() reads the file once, feeding a TopK heap, when k or
+ *       n - k is small; otherwise it takes two passes building 16-bit
+ *       histograms, a radix select in constant memory.
+ *
+ ********************************************************************/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+class IntFiles {
+    private static final int CHUNK_INTS = 1 << 22;      // 16 MB mapped, and sorted, at a time
+    private static final int OUT_BUFFER = 1 << 16;
+    private static final int MAX_HEAP_K = 1 << 20;
+
+    private IntFiles() {}
+
+    /*
+     * Number of ints in a file.
+     */
+    static long length(Path file) throws IOException {
+        long bytes = Files.size(file);
+        if (bytes % 4 != 0)
+            throw new IllegalArgumentException(file + " is not a file of ints");
+        return bytes / 4;
+    }
+
+    // Ints [from, from + n) of a file, n <= CHUNK_INTS
+    private static IntBuffer map(FileChannel channel, FileChannel.MapMode mode, long from, int n) throws IOException {
+        return channel.map(mode, 4 * from, 4L * n).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    // A chunk of an input file, and where its sorted run goes
+    private static final class Chunk {
+        final int file;
+        final long from, to;
+        final int length;
+
+        Chunk(int file, long from, long to, int length) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+            this.length = length;
+        }
+    }
+
+    // A sorted run, read in place from the mapped runs file
+    private static final class RunSource implements LoserTree.Source {
+        private final IntBuffer run;
+
+        RunSource(IntBuffer run) { this.run = run; }
+
+        public boolean hasNext() { return run.hasRemaining(); }
+        public int next() { return run.get(); }
+    }
+
+    /*
+     * Writes the ints of all inputs, in ascending order, to 'out'.
+     */
+    static void sort(Path[] inputs, Path out) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long total = 0;
+        for (int f = 0; f < inputs.length; f++) {
+            long n = length(inputs[f]);
+            for (long from = 0; from < n; from += CHUNK_INTS) {
+                int length = (int) Math.min(CHUNK_INTS, n - from);
+                chunks.add(new Chunk(f, from, total, length));
+                total += length;
+            }
+        }
+
+        // A single chunk is sorted straight into the output
+        Path runs = chunks.size() > 1
+                ? Files.createTempFile(out.toAbsolutePath().getParent(), "runs", ".tmp")
+                : out;
+        try {
+            FileChannel[] in = new FileChannel[inputs.length];
+            try (FileChannel runChannel = FileChannel.open(runs, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+                for (int f = 0; f < inputs.length; f++)
+                    in[f] = FileChannel.open(inputs[f], StandardOpenOption.READ);
+                // Sized up front, so the parallel mappings never extend it
+                if (total > 0)
+                    runChannel.write(ByteBuffer.allocate(1), 4 * total - 1);
+                sortRuns(chunks, in, runChannel);
+                if (chunks.size() > 1)
+                    merge(chunks, runChannel, out);
+            } finally {
+                for (FileChannel channel : in) {
+                    if (channel != null)
+                        channel.close();
+                }
+            }
+        } finally {
+            if (runs != out)
+                Files.deleteIfExists(runs);
+        }
+    }
+
+    private static void sortRuns(List<Chunk> chunks, FileChannel[] in, FileChannel runs) throws IOException {
+        try {
+            IntStream.range(0, chunks.size()).parallel().forEach(i -> {
+                Chunk chunk = chunks.get(i);
+                int[] values = new int[chunk.length];
+                try {
+                    map(in[chunk.file], FileChannel.MapMode.READ_ONLY, chunk.from, chunk.length).get(values);
+                    ProblemSolutions.sortInts(values);
+                    map(runs, FileChannel.MapMode.READ_WRITE, chunk.to, chunk.length).put(values);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void merge(List<Chunk> chunks, FileChannel runs, Path out) throws IOException {
+        LoserTree.Source[] sources = new LoserTree.Source[chunks.size()];
+        for (int i = 0; i < sources.length; i++) {
+            Chunk chunk = chunks.get(i);
+            sources[i] = new RunSource(map(runs, FileChannel.MapMode.READ_ONLY, chunk.to, chunk.length));
+        }
+        LoserTree tree = new LoserTree(sources);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4 * OUT_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+            while (tree.hasNext()) {
+                buffer.putInt(tree.next());
+                if (!buffer.hasRemaining())
+                    flush(buffer, channel);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /*
+     * The k-th largest int of a file. With r = n - k, it is also the value
+     * of rank r from the bottom, i.e. ~(the (r + 1)-th largest ~value),
+     * so a heap of min(k, r + 1) values is enough.
+     */
+    static int kthLargest(Path file, int k) throws IOException {
+        long n = length(file);
+        if (k < 1 || k > n)
+            throw new IllegalArgumentException("Invalid k");
+        long r = n - k;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int noChunks = (int) ((n + CHUNK_INTS - 1) / CHUNK_INTS);
+            if (k <= MAX_HEAP_K || r < MAX_HEAP_K) {
+                boolean top = k <= r + 1;
+                int size = top ? k : (int) r + 1;
+                int kth = unchecked(() -> IntStream.range(0, noChunks).parallel().collect(() -> new TopK(size),
+                        (heap, c) -> {
+                            IntBuffer ints = chunk(channel, c, n);
+                            for (int i = 0, end = ints.limit(); i < end; i++)
+                                heap.add(top ? ints.get(i) : ~ints.get(i));
+                        }, TopK::merge)).kth();
+                return top ? kth : ~kth;
+            }
+
+            // Radix select: the high 16 bits first (sign flipped, so they
+            // order like the values), then the low 16 bits among the ints
+            // with those high bits.
+            long[] high = histogram(channel, noChunks, n, 16, 0, 0);
+            int h = bucket(high, r);
+            for (int i = 0; i < h; i++)
+                r -= high[i];
+            long[] low = histogram(channel, noChunks, n, 0, 0xffff0000, (h ^ 0x8000) << 16);
+            return (h ^ 0x8000) << 16 | bucket(low, r);
+        }
+    }
+
+    private static IntBuffer chunk(FileChannel channel, int c, long n) {
+        long from = (long) c * CHUNK_INTS;
+        try {
+            return map(channel, FileChannel.MapMode.READ_ONLY, from, (int) Math.min(CHUNK_INTS, n - from));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Counts the 16-bit digits at 'shift' of the ints v with
+     * (v & mask) == match. The high digit has its sign bit flipped.
+     */
+    private static long[] histogram(FileChannel channel, int noChunks, long n,
+                                    int shift, int mask, int match) throws IOException {
+        int flip = shift == 16 ? 0x8000 : 0;
+        return unchecked(() -> IntStream.range(0, noChunks).parallel().collect(() -> new long[1 << 16],
+                (counts, c) -> {
+                    IntBuffer ints = chunk(channel, c, n);
+                    for (int i = 0, end = ints.limit(); i < end; i++) {
+                        int v = ints.get(i);
+                        if ((v & mask) == match)
+                            counts[((v >>> shift) & 0xffff) ^ flip]++;
+                    }
+                }, (counts, other) -> {
+                    for (int i = 0; i < counts.length; i++)
+                        counts[i] += other[i];
+                }));
+    }
+
+    // Index of the bucket holding the value of rank r (0-based)
+    private static int bucket(long[] counts, long r) {
+        for (int i = 0; i < counts.length; i++) {
+            if (r < counts[i])
+                return i;
+            r -= counts[i];
+        }
+        throw new IllegalStateException("File changed while it was read");
+    }
+
+    private static <T> T unchecked(Supplier<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Primitive open-addressing set of ints, with linear probing in a
+ *   single int[] kept at most half full. Compared with a HashSet<Integer>
+ *   there is no boxing and no node per element (8 bytes per element
+ *   instead of about 50), and a lookup that misses usually ends on the
+ *   same cache line as its home slot.
+ *
+ *   The set only grows; there is no remove(), so no tombstones either.
+ *
+ ********************************************************************/
+
+class IntHashSet {
+    private static final int EMPTY = 0;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private int[] slots;
+    private int mask;
+    private int size = 0;
+
+    // 0 marks an empty slot, so it is kept aside
+    private boolean hasZero = false;
+
+    public IntHashSet(int expectedSize) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException("Invalid size");
+        allocate(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int size) {
+        if (size > MAX_CAPACITY / 2)
+            return MAX_CAPACITY;
+        return Math.max(2, Integer.highestOneBit(Math.max(1, 2 * size - 1)) << 1);
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int slot(int value, int mask) {
+        return (int) BloomFilter.mix(value) & mask;
+    }
+
+    public int size() { return size; }
+
+    public boolean contains(int value) {
+        if (value == EMPTY)
+            return hasZero;
+        for (int i = slot(value, mask); ; i = (i + 1) & mask) {
+            int v = slots[i];
+            if (v == value)
+                return true;
+            if (v == EMPTY)
+                return false;
+        }
+    }
+
+    /*
+     * Returns false if the value was already there.
+     */
+    public boolean add(int value) {
+        if (value == EMPTY) {
+            if (hasZero)
+                return false;
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int i = slot(value, mask);
+        for (int v; (v = slots[i]) != EMPTY; i = (i + 1) & mask) {
+            if (v == value)
+                return false;
+        }
+        if (2 * (size + 1) > slots.length) {
+            grow();
+            insert(value);
+        } else {
+            slots[i] = value;
+        }
+        size++;
+        return true;
+    }
+
+    public void addAll(int[] values) {
+        for (int v : values)
+            add(v);
+    }
+
+    // Puts a value known to be missing
+    private void insert(int value) {
+        int i = slot(value, mask);
+        while (slots[i] != EMPTY)
+            i = (i + 1) & mask;
+        slots[i] = value;
+    }
+
+    private void grow() {
+        if (slots.length == MAX_CAPACITY)
+            throw new IllegalStateException("Int set would be too big");
+        int[] old = slots;
+        allocate(2 * old.length);
+        for (int v : old) {
+            if (v != EMPTY)
+                insert(v);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Primitive-specialized cuckoo hash map from int keys to int values.
+ *   Keys and values are kept in parallel arrays, with no Bucket objects
+ *   and no boxing, so put / get / remove don't allocate (except when the
+ *   table is rehashed). Uses the same two-choice eviction walk as
+ *   CuckooHash, with the seeded hash functions of its seeded mode.
+ *
+ ********************************************************************/
+
+import java.util.SplittableRandom;
+
+public class IntIntCuckooMap {
+    private static final int EMPTY = 0;
+    private static final int MAX_RESEEDS = 4;
+
+    private int[] keys;
+    private int[] values;
+    private int capacity;
+    private int size = 0;
+
+    // The key 0 marks an empty slot, so an entry with key 0 is kept aside.
+    private boolean hasZeroKey = false;
+    private int zeroValue;
+
+    private final SplittableRandom seeds;
+    private long seed1, seed2;
+
+    // The entry left without a slot when place() gives up.
+    private int spillKey;
+    private int spillValue;
+
+    public IntIntCuckooMap(int size, long seed) {
+        seeds = new SplittableRandom(seed);
+        seed1 = seeds.nextLong();
+        seed2 = seeds.nextLong();
+        allocate(Math.max(2, Integer.highestOneBit(Math.max(1, size - 1)) << 1));
+    }
+
+    private void allocate(int newCapacity) {
+        capacity = newCapacity;
+        keys = new int[newCapacity];
+        values = new int[newCapacity];
+    }
+
+    private int hash1(int key) { return (int) BloomFilter.mix(key ^ seed1) & (capacity - 1); }
+    private int hash2(int key) { return (int) BloomFilter.mix(key ^ seed2) & (capacity - 1); }
+
+    public int size() { return size; }
+
+    public int mapSize() { return capacity; }
+
+    public void clear() {
+        allocate(capacity);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = 0;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == EMPTY)
+            return hasZeroKey;
+        return keys[hash1(key)] == key || keys[hash2(key)] == key;
+    }
+
+    public int get(int key, int defaultValue) {
+        if (key == EMPTY)
+            return hasZeroKey ? zeroValue : defaultValue;
+        int pos = hash1(key);
+        if (keys[pos] == key)
+            return values[pos];
+        pos = hash2(key);
+        if (keys[pos] == key)
+            return values[pos];
+        return defaultValue;
+    }
+
+    public void put(int key, int value) {
+        if (key == EMPTY) {
+            if (!hasZeroKey)
+                size++;
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        int pos1 = hash1(key);
+        if (keys[pos1] == key) {
+            values[pos1] = value;
+            return;
+        }
+        int pos2 = hash2(key);
+        if (keys[pos2] == key) {
+            values[pos2] = value;
+            return;
+        }
+        size++;
+        if (!place(key, value))
+            rehash();
+    }
+
+    public boolean remove(int key) {
+        if (key == EMPTY) {
+            if (!hasZeroKey)
+                return false;
+            hasZeroKey = false;
+            zeroValue = 0;
+            size--;
+            return true;
+        }
+        int pos = hash1(key);
+        if (keys[pos] != key) {
+            pos = hash2(key);
+            if (keys[pos] != key)
+                return false;
+        }
+        keys[pos] = EMPTY;
+        values[pos] = 0;
+        size--;
+        return true;
+    }
+
+    /*
+     * Same eviction walk as CuckooHash.place(). Returns false, with the
+     * entry left without a slot in spillKey / spillValue, when the walk
+     * runs into a cycle.
+     */
+    private boolean place(int key, int value) {
+        int pos1 = hash1(key);
+        if (keys[pos1] == EMPTY) {
+            keys[pos1] = key;
+            values[pos1] = value;
+            return true;
+        }
+        int pos2 = hash2(key);
+        if (keys[pos2] == EMPTY) {
+            keys[pos2] = key;
+            values[pos2] = value;
+            return true;
+        }
+
+        int currentPos = pos1;
+        for (int kicks = 0, max = maxKicks(); kicks <= max; kicks++) {
+            if (keys[currentPos] == EMPTY) {
+                keys[currentPos] = key;
+                values[currentPos] = value;
+                return true;
+            }
+
+            // Swap current with existing
+            int k = keys[currentPos];
+            int v = values[currentPos];
+            keys[currentPos] = key;
+            values[currentPos] = value;
+            key = k;
+            value = v;
+
+            // Move to alternate position
+            int alt = hash1(key);
+            currentPos = currentPos == alt ? hash2(key) : alt;
+        }
+        spillKey = key;
+        spillValue = value;
+        return false;
+    }
+
+    private int maxKicks() {
+        return 16 + 4 * Integer.numberOfTrailingZeros(capacity);
+    }
+
+    /*
+     * Called with the entry that could not be placed in spillKey /
+     * spillValue. As in CuckooHash's seeded mode, first retries with new
+     * hash functions at the same capacity, and doubles only after
+     * MAX_RESEEDS failed attempts.
+     */
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        int homelessKey = spillKey;
+        int homelessValue = spillValue;
+        int newCapacity = capacity;
+        int attempts = 0;
+        while (true) {
+            if (attempts++ == MAX_RESEEDS) {
+                newCapacity *= 2;
+                attempts = 0;
+            }
+            seed1 = seeds.nextLong();
+            seed2 = seeds.nextLong();
+            allocate(newCapacity);
+            boolean placed = place(homelessKey, homelessValue);
+            for (int i = 0; i < oldKeys.length && placed; i++) {
+                if (oldKeys[i] != EMPTY)
+                    placed = place(oldKeys[i], oldValues[i]);
+            }
+            if (placed)
+                return;
+        }
+    }
+}
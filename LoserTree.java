@@ -0,0 +1,125 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   k-way merge of sorted int sources with a tree of losers (Knuth,
+ *   TAOCP vol. 3, 5.4.1). Each internal node remembers the loser of the
+ *   match played there and the overall winner sits above the root, so
+ *   taking the smallest head and refilling it from its source replays
+ *   only the log2(k) matches on that source's path, one comparison per
+ *   level; a binary heap needs about two per level.
+ *
+ *   Sources are anything that yields ints in ascending order: slices of
+ *   arrays (see merge()) or, for inputs that don't fit in memory, streams
+ *   read from files. Equal values come out in source order.
+ *
+ ********************************************************************/
+
+class LoserTree {
+    interface Source {
+        boolean hasNext();
+        int next();
+    }
+
+    static final class ArraySource implements Source {
+        private final int[] array;
+        private int from;
+        private final int to;
+
+        ArraySource(int[] array, int from, int to) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean hasNext() { return from < to; }
+        public int next() { return array[from++]; }
+    }
+
+    private final Source[] sources;
+    private final int k;
+    private final int[] tree;     // tree[0] the winner, tree[1..k) the losers
+
+    // Head of each source, as (value << 32 | source index) so that a match
+    // is a single comparison that also breaks ties by source; DONE for an
+    // exhausted source, above any such key.
+    private final long[] keys;
+    private static final long DONE = Long.MAX_VALUE;
+
+    public LoserTree(Source[] sources) {
+        if (sources.length == 0)
+            throw new IllegalArgumentException("No sources");
+        this.sources = sources;
+        this.k = sources.length;
+        this.tree = new int[k];
+        this.keys = new long[k];
+        for (int i = 0; i < k; i++)
+            advance(i);
+        tree[0] = k == 1 ? 0 : play(1);
+    }
+
+    /*
+     * Merges whole sorted arrays.
+     */
+    public static int[] merge(int[]... arrays) {
+        Source[] sources = new Source[arrays.length];
+        long length = 0;
+        for (int i = 0; i < arrays.length; i++) {
+            sources[i] = new ArraySource(arrays[i], 0, arrays[i].length);
+            length += arrays[i].length;
+        }
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Merged array would be too big");
+        int[] out = new int[(int) length];
+        if (arrays.length > 0)
+            new LoserTree(sources).drainTo(out, 0);
+        return out;
+    }
+
+    private void advance(int i) {
+        keys[i] = sources[i].hasNext() ? (long) sources[i].next() << 32 | i : DONE;
+    }
+
+    // Plays the matches below 'node' (leaves are nodes k..2k-1) and returns
+    // the winner, leaving the losers in the tree.
+    private int play(int node) {
+        if (node >= k)
+            return node - k;
+        int left = play(2 * node), right = play(2 * node + 1);
+        if (keys[left] < keys[right]) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    public boolean hasNext() { return keys[tree[0]] != DONE; }
+
+    public int next() {
+        int winner = tree[0];
+        int value = (int) (keys[winner] >> 32);
+        advance(winner);
+        long key = keys[winner];
+        for (int node = (winner + k) >>> 1; node > 0; node >>>= 1) {
+            if (keys[tree[node]] < key) {
+                int t = tree[node];
+                tree[node] = winner;
+                winner = t;
+                key = keys[winner];
+            }
+        }
+        tree[0] = winner;
+        return value;
+    }
+
+    /*
+     * Writes everything that is left into out[off..], returning the index
+     * after the last value written.
+     */
+    public int drainTo(int[] out, int off) {
+        while (hasNext())
+            out[off++] = next();
+        return off;
+    }
+}
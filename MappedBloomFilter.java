@@ -0,0 +1,222 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   File-backed variant of the bloom filter in 'BloomFilter.java'. The
+ *   bitmap lives in a memory-mapped file rather than in a BitSet, so:
+ *
+ *     - the filter can be larger than 2^31 bits (bit numbers are longs),
+ *     - reopening an existing filter only maps the file, there is no
+ *       rebuild, and the OS page cache decides what stays resident.
+ *
+ *   File layout (little-endian):
+ *
+ *     offset 0    magic "BLOOMMAP"        (8 bytes)
+ *            8    format version          (int)
+ *           12    log2 of number of bits  (int)
+ *           16    number of hashes        (int)
+ *           20    hash mode ordinal       (int)
+ *         4096    bitmap, 64 bits per long word
+ *
+ *   A single thread may add while others probe; the filter does no
+ *   locking of its own.
+ *
+ ********************************************************************/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class MappedBloomFilter implements Closeable {
+    private static final long MAGIC = 0x50414D4D4F4F4C42L;   // "BLOOMMAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int MAX_HASHES = 8;
+
+    // A MappedByteBuffer is limited to 2^31 - 1 bytes, so the bitmap is
+    // mapped in 1 GB chunks of 2^27 words each.
+    private static final int LOG2_CHUNK_WORDS = 27;
+    private static final long CHUNK_WORD_MASK = (1L << LOG2_CHUNK_WORDS) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int log2noBits;
+    private final int noHashes;
+    private final long hashMask;
+    private final BloomFilter.HashMode mode;
+
+    /*
+     * Opens the filter stored in 'path', or creates an empty one with the
+     * given geometry if the file does not exist. An existing file must have
+     * been created with the same geometry.
+     */
+    public MappedBloomFilter(Path path, int log2noBits, int noHashes,
+                             BloomFilter.HashMode mode) throws IOException {
+        if (log2noBits < 6 || log2noBits > 40)
+            throw new IllegalArgumentException("Invalid number of bits");
+        if (noHashes < 1 || noHashes > MAX_HASHES)
+            throw new IllegalArgumentException("Invalid number of hashes");
+
+        boolean exists = Files.exists(path);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (exists) {
+                ByteBuffer header = readHeader(channel);
+                if (header.getInt(12) != log2noBits || header.getInt(16) != noHashes
+                        || header.getInt(20) != mode.ordinal())
+                    throw new IllegalArgumentException("Existing filter has a different geometry");
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(0, MAGIC);
+                header.putInt(8, VERSION);
+                header.putInt(12, log2noBits);
+                header.putInt(16, noHashes);
+                header.putInt(20, mode.ordinal());
+                channel.write(header, 0);
+            }
+            this.chunks = map(channel, log2noBits);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.log2noBits = log2noBits;
+        this.noHashes = noHashes;
+        this.hashMask = (1L << log2noBits) - 1;
+        this.mode = mode;
+    }
+
+    /*
+     * Opens an existing filter, taking its geometry from the file header.
+     */
+    public MappedBloomFilter(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = readHeader(channel);
+            this.log2noBits = header.getInt(12);
+            this.noHashes = header.getInt(16);
+            this.mode = BloomFilter.HashMode.values()[header.getInt(20)];
+            this.chunks = map(channel, log2noBits);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        this.hashMask = (1L << log2noBits) - 1;
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0)
+                throw new IOException("Truncated bloom filter header");
+        }
+        if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+            throw new IOException("Not a bloom filter file");
+        if (header.getInt(12) < 6 || header.getInt(12) > 40
+                || header.getInt(16) < 1 || header.getInt(16) > MAX_HASHES
+                || header.getInt(20) < 0 || header.getInt(20) >= BloomFilter.HashMode.values().length)
+            throw new IOException("Corrupt bloom filter header");
+        return header;
+    }
+
+    /*
+     * Maps the bitmap in chunks. Mapping read-write grows the file to its
+     * full size; the new pages are sparse until bits are set in them.
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, int log2noBits) throws IOException {
+        long bytes = 1L << (log2noBits - 3);
+        long chunkBytes = 8L << LOG2_CHUNK_WORDS;
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((bytes + chunkBytes - 1) / chunkBytes)];
+        for (int i = 0; i < chunks.length; i++) {
+            long position = HEADER_BYTES + i * chunkBytes;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                    Math.min(chunkBytes, bytes - i * chunkBytes));
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    public long noBits() { return 1L << log2noBits; }
+
+    public void add(String s) {
+        probe(s, true);
+    }
+
+    public boolean contains(String s) {
+        return probe(s, false);
+    }
+
+    /*
+     * Same structure as BloomFilter.probe(), with long bit numbers. In
+     * SINGLE_PASS mode both lanes are needed at full width, more than
+     * BloomFilter.lanes() packs into one long, so they are stepped here
+     * into locals; their low halves are what lanes(s, 0, 1, true) returns.
+     */
+    private boolean probe(String s, boolean set) {
+        if (mode == BloomFilter.HashMode.SINGLE_PASS) {
+            long a = BloomFilter.HSTART, b = BloomFilter.HSTART;
+            for (int len = s.length(), i = 0; i < len; i++) {
+                char ch = s.charAt(i);
+                a = BloomFilter.step(a, ch, 0);
+                b = BloomFilter.step(b, ch, 256);
+            }
+            long h1 = BloomFilter.mix(a), h2 = BloomFilter.mix(b) | 1;
+            for (int n = 0; n < noHashes; n++) {
+                if (!probe(h1 & hashMask, set))
+                    return false;
+                h1 += h2;
+            }
+            return true;
+        }
+        for (int n = 0; n < noHashes; n++) {
+            if (!probe(BloomFilter.hashCode(s, n) & hashMask, set))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean probe(long bitNo, boolean set) {
+        if (set) {
+            setBit(bitNo);
+            return true;
+        }
+        return getBit(bitNo);
+    }
+
+    private void setBit(long bitNo) {
+        long word = bitNo >>> 6;
+        MappedByteBuffer chunk = chunks[(int) (word >>> LOG2_CHUNK_WORDS)];
+        int offset = (int) (word & CHUNK_WORD_MASK) << 3;
+        long w = chunk.getLong(offset);
+        long mask = 1L << bitNo;
+        if ((w & mask) == 0)
+            chunk.putLong(offset, w | mask);
+    }
+
+    private boolean getBit(long bitNo) {
+        long word = bitNo >>> 6;
+        MappedByteBuffer chunk = chunks[(int) (word >>> LOG2_CHUNK_WORDS)];
+        return (chunk.getLong((int) (word & CHUNK_WORD_MASK) << 3) & (1L << bitNo)) != 0;
+    }
+
+    /*
+     * Writes dirty pages back to the file. Not needed for the data to
+     * survive a JVM exit (the OS owns the pages), only for a machine crash.
+     */
+    public void force() {
+        for (MappedByteBuffer chunk : chunks)
+            chunk.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
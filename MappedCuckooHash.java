@@ -0,0 +1,236 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Read-only, memory-mapped view of a CuckooHash snapshot, see
+ *   CuckooHash.snapshot() and CuckooHash.open(). The snapshot stores the
+ *   slot array as it is, so opening it only maps the file: get() computes
+ *   the same two positions as CuckooHash and reads the records in place,
+ *   with no reinsertion. Start-up cost is the page faults of the lookups,
+ *   not the number of entries.
+ *
+ *   Keys are found again by key.hashCode(), which must therefore be the
+ *   same in the JVM that reads the snapshot (as it is for String).
+ *
+ *   File layout (little-endian):
+ *
+ *     offset 0    magic "CUCKOOMP"             (8 bytes)
+ *            8    format version               (int)
+ *           12    seeded mode, 0 or 1          (int)
+ *           16    capacity                     (int)
+ *           20    hash constants a, b          (2 ints)
+ *           28    insertion counter            (int)
+ *           32    seeds 1 and 2                (2 longs)
+ *           48    number of entries            (long)
+ *           56    number of stashed entries    (int)
+ *           64    offset of the slot array     (long)
+ *         4096    records, each [int keyLength][int valueLength]
+ *                 [int insertionOrder][key][value]; none crosses a
+ *                 1 GB boundary
+ *                 slot array, one long per slot: offset of its record,
+ *                 or 0 if empty; then the offsets of the stashed records
+ *
+ ********************************************************************/
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MappedCuckooHash<K, V> implements Closeable {
+    private static final long MAGIC = 0x504D4F4F4B435543L;   // "CUCKOOMP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4096;
+    private static final int RECORD_HEADER = 12;
+
+    // A MappedByteBuffer is limited to 2^31 - 1 bytes, so the file is
+    // mapped in 1 GB chunks.
+    private static final int LOG2_CHUNK = 30;
+    private static final long CHUNK_MASK = (1L << LOG2_CHUNK) - 1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final OffHeapCuckooHash.Codec<K> keyCodec;
+    private final OffHeapCuckooHash.Codec<V> valueCodec;
+    private final boolean seeded;
+    private final int capacity, a, b;
+    private final long seed1, seed2;
+    private final long size;
+    private final int noStashed;
+    private final long slotsOffset;
+
+    public MappedCuckooHash(Path path, OffHeapCuckooHash.Codec<K> keyCodec,
+                            OffHeapCuckooHash.Codec<V> valueCodec) throws IOException {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("Truncated cuckoo hash snapshot");
+            }
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+                throw new IOException("Not a cuckoo hash snapshot");
+            seeded = header.getInt(12) != 0;
+            capacity = header.getInt(16);
+            a = header.getInt(20);
+            b = header.getInt(24);
+            seed1 = header.getLong(32);
+            seed2 = header.getLong(40);
+            size = header.getLong(48);
+            noStashed = header.getInt(56);
+            slotsOffset = header.getLong(64);
+            if (capacity < 1 || (seeded && Integer.bitCount(capacity) != 1) || noStashed < 0
+                    || slotsOffset + 8L * (capacity + noStashed) != channel.size())
+                throw new IOException("Corrupt cuckoo hash snapshot");
+
+            long bytes = channel.size();
+            chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_MASK) >>> LOG2_CHUNK)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i << LOG2_CHUNK;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(1L << LOG2_CHUNK, bytes - position));
+                chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long size() { return size; }
+
+    public int mapSize() { return capacity; }
+
+    private MappedByteBuffer chunk(long offset) { return chunks[(int) (offset >>> LOG2_CHUNK)]; }
+
+    private long slot(long i) {
+        long offset = slotsOffset + 8 * i;
+        return chunk(offset).getLong((int) (offset & CHUNK_MASK));
+    }
+
+    /*
+     * Same positions as CuckooHash.hash1() / hash2().
+     */
+    private int position(K key, int n) {
+        int h = key.hashCode();
+        if (seeded)
+            return (int) BloomFilter.mix(h ^ (n == 1 ? seed1 : seed2)) & (capacity - 1);
+        return n == 1 ? Math.abs(h) % capacity : (a * b + Math.abs(h)) % capacity;
+    }
+
+    /*
+     * Returns the value of the record at 'offset' if its key is 'key',
+     * else null. Keys are compared as encoded bytes.
+     */
+    private V match(long offset, byte[] key) {
+        if (offset == 0)
+            return null;
+        MappedByteBuffer chunk = chunk(offset);
+        int at = (int) (offset & CHUNK_MASK);
+        if (chunk.getInt(at) != key.length)
+            return null;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(at + RECORD_HEADER + i) != key[i])
+                return null;
+        }
+        return valueCodec.decode(chunk, at + RECORD_HEADER + key.length, chunk.getInt(at + 4));
+    }
+
+    public V get(K key) {
+        byte[] k = keyCodec.encode(key);
+        V value = match(slot(position(key, 1)), k);
+        if (value == null)
+            value = match(slot(position(key, 2)), k);
+        for (int i = 0; value == null && i < noStashed; i++)
+            value = match(slot(capacity + i), k);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /*
+     * Writes a snapshot: records first, as they come, then the slot array
+     * and the header once all record offsets are known.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = HEADER_BYTES;
+
+        Writer(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            channel.position(HEADER_BYTES);
+            out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        }
+
+        private void pad(long bytes) throws IOException {
+            for (; bytes > 0; bytes--, position++)
+                out.write(0);
+        }
+
+        /*
+         * Appends a record and returns its offset in the file.
+         */
+        long record(byte[] key, byte[] value, int insertionOrder) throws IOException {
+            long length = RECORD_HEADER + (long) key.length + value.length;
+            if (length > (1L << LOG2_CHUNK))
+                throw new IllegalArgumentException("Entry too big for a snapshot");
+            if ((position & CHUNK_MASK) + length > (1L << LOG2_CHUNK))
+                pad((1L << LOG2_CHUNK) - (position & CHUNK_MASK));
+            long offset = position;
+            scratch.putInt(0, key.length).putInt(4, value.length).putInt(8, insertionOrder);
+            out.write(scratch.array());
+            out.write(key);
+            out.write(value);
+            position += length;
+            return offset;
+        }
+
+        void finish(boolean seeded, int capacity, int a, int b, int insertionCounter,
+                    long seed1, long seed2, long size, long[] slots, long[] stashed) throws IOException {
+            pad(-position & 7);
+            long slotsOffset = position;
+            ByteBuffer word = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            for (long offset : slots)
+                out.write(word.putLong(0, offset).array());
+            for (long offset : stashed)
+                out.write(word.putLong(0, offset).array());
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(0, MAGIC);
+            header.putInt(8, VERSION);
+            header.putInt(12, seeded ? 1 : 0);
+            header.putInt(16, capacity);
+            header.putInt(20, a);
+            header.putInt(24, b);
+            header.putInt(28, insertionCounter);
+            header.putLong(32, seed1);
+            header.putLong(40, seed2);
+            header.putLong(48, size);
+            header.putInt(56, stashed.length);
+            header.putLong(64, slotsOffset);
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Off-heap variant of BucketizedCuckooHash, for tables large enough
+ *   that a Bucket and two Strings per entry make the GC pauses grow with
+ *   the table. Nothing per entry lives on the Java heap:
+ *
+ *     - the slots (4 per bucket) are two direct buffers, one with the
+ *       32-bit hash of each key and one with the address of its record;
+ *     - the records, [int keyLength][int valueLength][key][value], are
+ *       appended to an arena of direct buffer chunks.
+ *
+ *   Keys and values are turned into bytes by pluggable codecs. A lookup
+ *   encodes the key once, compares the stored hashes, and then compares
+ *   key bytes in place; only the value of a hit is decoded. Cuckoo
+ *   evictions move slots, never records.
+ *
+ *   Records of removed or replaced entries are left in the arena and
+ *   reclaimed by compact(), which runs by itself once they take more
+ *   space than the live ones.
+ *
+ *   Keys are unique: putting an existing key replaces its value.
+ *
+ ********************************************************************/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+public class OffHeapCuckooHash<K, V> {
+    private static final int SLOTS = 4;
+    private static final int MAX_KICKS = 500;
+    private static final int MIN_CHUNK = 1 << 16;
+    private static final int MAX_CHUNK = 1 << 26;
+    private static final int HEADER = 8;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /*
+     * Converts keys or values to and from bytes. Equal keys must encode to
+     * equal bytes, since that is what lookups compare.
+     */
+    public interface Codec<T> {
+        byte[] encode(T value);
+        T decode(ByteBuffer buffer, int offset, int length);
+    }
+
+    public static final Codec<String> UTF8 = new Codec<String>() {
+        public byte[] encode(String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public String decode(ByteBuffer buffer, int offset, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final SplittableRandom random;
+    private long seed1, seed2;
+
+    private int noBuckets;
+    private IntBuffer hashes;
+    private LongBuffer refs;      // chunk << 32 | offset of the record, 0 if empty
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int top;              // first free byte of the last chunk
+    private long liveBytes = 0, garbageBytes = 0;
+    private int size = 0;
+
+    // entry left over by place()
+    private int homelessHash;
+    private long homelessRef;
+
+    public OffHeapCuckooHash(int size, long seed, Codec<K> keyCodec, Codec<V> valueCodec) {
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        random = new SplittableRandom(seed);
+        seed1 = random.nextLong();
+        seed2 = random.nextLong();
+        int buckets = Math.max(1, (size + SLOTS - 1) / SLOTS);
+        allocateSlots(Math.max(2, Integer.highestOneBit(Math.max(1, buckets - 1)) << 1));
+        allocateArena();
+    }
+
+    private void allocateSlots(int buckets) {
+        // a direct buffer holds at most 2^31 - 1 bytes; refs are the bigger one
+        if ((long) buckets * SLOTS * 8 > Integer.MAX_VALUE)
+            throw new IllegalStateException("Off-heap cuckoo hash would be too big");
+        noBuckets = buckets;
+        hashes = ByteBuffer.allocateDirect(buckets * SLOTS * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        refs = ByteBuffer.allocateDirect(buckets * SLOTS * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private void allocateArena() {
+        chunks.clear();
+        chunks.add(ByteBuffer.allocateDirect(MIN_CHUNK).order(ByteOrder.nativeOrder()));
+        top = HEADER;    // so that no record is at address 0
+        liveBytes = garbageBytes = 0;
+    }
+
+    // FNV-1a over the encoded key
+    private static int hash(byte[] key) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : key)
+            h = (h ^ (b & 0xff)) * 0x100000001B3L;
+        return (int) BloomFilter.mix(h);
+    }
+
+    private int bucket1(int h) { return (int) BloomFilter.mix(h ^ seed1) & (noBuckets - 1); }
+    private int bucket2(int h) { return (int) BloomFilter.mix(h ^ seed2) & (noBuckets - 1); }
+
+    public int size() { return size; }
+
+    public int mapSize() { return noBuckets * SLOTS; }
+
+    /*
+     * Native memory in use: slots plus arena chunks.
+     */
+    public long offHeapBytes() {
+        long bytes = (long) noBuckets * SLOTS * 12;
+        for (ByteBuffer chunk : chunks)
+            bytes += chunk.capacity();
+        return bytes;
+    }
+
+    public void clear() {
+        allocateSlots(noBuckets);
+        allocateArena();
+        size = 0;
+    }
+
+    /*
+     * Appends a record to the arena and returns its address.
+     */
+    private long append(byte[] key, byte[] value) {
+        int length = HEADER + key.length + value.length;
+        ByteBuffer chunk = chunks.get(chunks.size() - 1);
+        if (top + length > chunk.capacity()) {
+            int capacity = Math.min(MAX_CHUNK, 2 * chunk.capacity());
+            chunk = ByteBuffer.allocateDirect(Math.max(capacity, length)).order(ByteOrder.nativeOrder());
+            chunks.add(chunk);
+            top = 0;
+        }
+        chunk.putInt(top, key.length);
+        chunk.putInt(top + 4, value.length);
+        chunk.put(top + HEADER, key);
+        chunk.put(top + HEADER + key.length, value);
+        long ref = (long) (chunks.size() - 1) << 32 | top;
+        top += length;
+        liveBytes += length;
+        return ref;
+    }
+
+    private ByteBuffer chunk(long ref) { return chunks.get((int) (ref >>> 32)); }
+
+    private int recordLength(long ref) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = (int) ref;
+        return HEADER + chunk.getInt(offset) + chunk.getInt(offset + 4);
+    }
+
+    private boolean keyEquals(long ref, byte[] key) {
+        ByteBuffer chunk = chunk(ref);
+        int offset = (int) ref;
+        if (chunk.getInt(offset) != key.length)
+            return false;
+        offset += HEADER;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            if (chunk.getLong(offset + i) != (long) LONGS.get(key, i))
+                return false;
+        }
+        for (; i < key.length; i++) {
+            if (chunk.get(offset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Returns the slot holding the key in the given bucket, or -1.
+     */
+    private int find(int bucket, int h, byte[] key) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (hashes.get(i) == h && refs.get(i) != 0 && keyEquals(refs.get(i), key))
+                return i;
+        }
+        return -1;
+    }
+
+    private int freeSlot(int bucket) {
+        for (int i = bucket * SLOTS, end = i + SLOTS; i < end; i++) {
+            if (refs.get(i) == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    private int find(byte[] key, int h) {
+        int slot = find(bucket1(h), h, key);
+        return slot >= 0 ? slot : find(bucket2(h), h, key);
+    }
+
+    public V get(K key) {
+        byte[] k = keyCodec.encode(key);
+        int slot = find(k, hash(k));
+        if (slot < 0)
+            return null;
+        long ref = refs.get(slot);
+        ByteBuffer chunk = chunk(ref);
+        int offset = (int) ref;
+        return valueCodec.decode(chunk, offset + HEADER + k.length, chunk.getInt(offset + 4));
+    }
+
+    public boolean remove(K key) {
+        byte[] k = keyCodec.encode(key);
+        int slot = find(k, hash(k));
+        if (slot < 0)
+            return false;
+        release(refs.get(slot));
+        refs.put(slot, 0);
+        size--;
+        compactIfSparse();
+        return true;
+    }
+
+    public void put(K key, V value) {
+        byte[] k = keyCodec.encode(key), v = valueCodec.encode(value);
+        int h = hash(k);
+        int slot = find(k, h);
+        if (slot >= 0) {
+            long ref = refs.get(slot);
+            ByteBuffer chunk = chunk(ref);
+            int offset = (int) ref;
+            if (chunk.getInt(offset + 4) == v.length) {
+                chunk.put(offset + HEADER + k.length, v);
+                return;
+            }
+            release(ref);
+            refs.put(slot, append(k, v));
+            compactIfSparse();
+            return;
+        }
+        size++;
+        if (!place(h, append(k, v), bucket1(h), bucket2(h)))
+            grow();
+    }
+
+    private void release(long ref) {
+        int length = recordLength(ref);
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    /*
+     * Places a slot, evicting a random slot of a full bucket and moving it
+     * to its other bucket, as in BucketizedCuckooHash. Returns false, with
+     * the slot left over in homelessHash/homelessRef, after MAX_KICKS
+     * evictions.
+     */
+    private boolean place(int h, long ref, int b1, int b2) {
+        int slot = freeSlot(b1);
+        if (slot < 0)
+            slot = freeSlot(b2);
+        int bucket = random.nextBoolean() ? b1 : b2;
+        for (int kicks = 0; slot < 0 && kicks < MAX_KICKS; kicks++) {
+            int victim = bucket * SLOTS + random.nextInt(SLOTS);
+            int vh = hashes.get(victim);
+            long vref = refs.get(victim);
+            hashes.put(victim, h);
+            refs.put(victim, ref);
+            h = vh;
+            ref = vref;
+
+            int alt1 = bucket1(h);
+            bucket = alt1 == bucket ? bucket2(h) : alt1;
+            slot = freeSlot(bucket);
+        }
+        if (slot < 0) {
+            homelessHash = h;
+            homelessRef = ref;
+            return false;
+        }
+        hashes.put(slot, h);
+        refs.put(slot, ref);
+        return true;
+    }
+
+    /*
+     * Doubles the number of buckets with new seeds and reinserts every slot
+     * plus the homeless one. The records stay where they are.
+     */
+    private void grow() {
+        IntBuffer oldHashes = hashes;
+        LongBuffer oldRefs = refs;
+        int h0 = homelessHash;
+        long ref0 = homelessRef;
+        int buckets = noBuckets;
+        while (true) {
+            allocateSlots(buckets *= 2);
+            seed1 = random.nextLong();
+            seed2 = random.nextLong();
+            boolean placed = true;
+            for (int i = 0; i < oldRefs.capacity() && placed; i++) {
+                long ref = oldRefs.get(i);
+                if (ref != 0) {
+                    int h = oldHashes.get(i);
+                    placed = place(h, ref, bucket1(h), bucket2(h));
+                }
+            }
+            if (placed && place(h0, ref0, bucket1(h0), bucket2(h0)))
+                return;
+        }
+    }
+
+    private void compactIfSparse() {
+        if (garbageBytes > liveBytes && garbageBytes > MIN_CHUNK)
+            compact();
+    }
+
+    /*
+     * Copies the live records into a fresh arena, in slot order, and
+     * frees the old chunks.
+     */
+    public void compact() {
+        List<ByteBuffer> oldChunks = new ArrayList<>(chunks);
+        allocateArena();
+        for (int i = 0; i < refs.capacity(); i++) {
+            long ref = refs.get(i);
+            if (ref == 0)
+                continue;
+            ByteBuffer chunk = oldChunks.get((int) (ref >>> 32));
+            int offset = (int) ref;
+            byte[] key = new byte[chunk.getInt(offset)];
+            byte[] value = new byte[chunk.getInt(offset + 4)];
+            chunk.get(offset + HEADER, key);
+            chunk.get(offset + HEADER + key.length, value);
+            refs.put(i, append(key, value));
+        }
+    }
+}
@@ -8,39 +8,291 @@
  *
  ********************************************************************/
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.IntPredicate;
 
 class ProblemSolutions {
 
+    /*
+     * Picks how to hold list1 by the shape of the input: a linear merge
+     * if both lists are sorted, a bitmap over [min, max] if that takes
+     * fewer bits than an IntHashSet (64 per element), and the IntHashSet
+     * otherwise. list2 is probed in parallel when large, stopping at the
+     * first value missing from list1.
+     */
     public boolean isSubset(int list1[], int list2[]) {
-        Set<Integer> set = new HashSet<>();
-        for (int num : list1) {
-            set.add(num);
+        return isSubset(list1, list2, false);
+    }
+
+    /*
+     * With 'bloomPrecheck', before building an IntHashSet of list1, list2
+     * is first probed against a BloomFilter of list1, about 8 bits per
+     * element: a miss there means false without building the exact set,
+     * which for a huge list1 is eight times the memory. When list1 does
+     * turn out to contain list2 the filter is wasted work.
+     */
+    public boolean isSubset(int[] list1, int[] list2, boolean bloomPrecheck) {
+        if (list2.length == 0)
+            return true;
+        if (list1.length == 0)
+            return false;
+        if (isSorted(list1) && isSorted(list2))
+            return mergeSubset(list1, list2);
+
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int v : list1) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
         }
-        for (int num : list2) {
-            if (!set.contains(num)) {
-                return false;
+        long range = (long) max - min + 1;
+        if (range <= 64L * list1.length) {
+            long[] bits = new long[(int) ((range + 63) >>> 6)];
+            for (int v : list1) {
+                long i = (long) v - min;
+                bits[(int) (i >>> 6)] |= 1L << i;
             }
+            long lo = min;
+            return allMatch(list2, v -> {
+                long i = v - lo;
+                return i >= 0 && i < range && (bits[(int) (i >>> 6)] & 1L << i) != 0;
+            });
+        }
+
+        if (bloomPrecheck) {
+            int log2noBits = Math.min(31, 64 - Long.numberOfLeadingZeros(8L * list1.length - 1));
+            BloomFilter filter = new BloomFilter(log2noBits, 3, BloomFilter.HashMode.SINGLE_PASS);
+            for (int v : list1)
+                filter.add(v);
+            if (!allMatch(list2, filter::contains))
+                return false;
+        }
+        IntHashSet set = new IntHashSet(list1.length);
+        set.addAll(list1);
+        return allMatch(list2, set::contains);
+    }
+
+    private static final int PARALLEL_PROBE_THRESHOLD = 1 << 16;
+
+    private static boolean isSorted(int[] a) {
+        for (int i = 1; i < a.length; i++) {
+            if (a[i] < a[i - 1])
+                return false;
         }
         return true;
     }
 
+    // Both sorted: one pass, no extra memory
+    private static boolean mergeSubset(int[] list1, int[] list2) {
+        int i = 0;
+        for (int v : list2) {
+            while (i < list1.length && list1[i] < v)
+                i++;
+            if (i == list1.length || list1[i] != v)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Tests every value, in parallel for large arrays when there is more
+     * than one core; allMatch() cancels the other tasks on the first miss.
+     */
+    private static boolean allMatch(int[] a, IntPredicate test) {
+        if (a.length >= PARALLEL_PROBE_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1)
+            return Arrays.stream(a).parallel().allMatch(test);
+        for (int v : a) {
+            if (!test.test(v))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Introselect on a copy of the array (the input is left alone): expected
+     * O(n) quickselect, falling back to sorting the remaining range if the
+     * partitions keep coming out lopsided. For k small next to n a single
+     * pass with a k-element heap (see TopK) is cheaper than copying the
+     * array.
+     */
     public int findKthLargest(int[] array, int k) {
-        PriorityQueue<Integer> minHeap = new PriorityQueue<>();
-        for (int num : array) {
-            minHeap.add(num);
-            if (minHeap.size() > k) {
-                minHeap.poll();
+        if (k < 1 || k > array.length)
+            throw new IllegalArgumentException("Invalid k");
+        if (k <= Math.max(SMALL_K, array.length >>> 10))
+            return TopK.of(array, k, false).kth();
+        int[] copy = array.clone();
+        return select(copy, 0, copy.length - 1, copy.length - k);
+    }
+
+    /*
+     * Same for a file of little-endian ints, which can be bigger than the
+     * heap; see IntFiles.kthLargest().
+     */
+    public int findKthLargest(Path file, int k) throws IOException {
+        return IntFiles.kthLargest(file, k);
+    }
+
+    private static final int SMALL_K = 8;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    /*
+     * Returns the value that sorting a[lo..hi] would put at index 'target',
+     * reordering a[lo..hi] in the process.
+     */
+    private static int select(int[] a, int lo, int hi, int target) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(hi - lo + 1));
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(a, lo, hi + 1);
+                return a[target];
             }
+
+            // Median of three as pivot, then Hoare's partition, which
+            // stops on values equal to the pivot from both sides so runs of
+            // equal values still split in half:
+            //   a[lo..j] <= pivot <= a[j + 1..hi]
+            int mid = (lo + hi) >>> 1;
+            int pivot = median(a[lo], a[mid], a[hi]);
+            int i = lo - 1, j = hi + 1;
+            while (true) {
+                do i++; while (a[i] < pivot);
+                do j--; while (a[j] > pivot);
+                if (i >= j)
+                    break;
+                swap(a, i, j);
+            }
+            if (target <= j)
+                hi = j;
+            else
+                lo = j + 1;
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            int v = a[i], j = i - 1;
+            while (j >= lo && a[j] > v) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = v;
         }
-        return minHeap.peek();
+        return a[target];
     }
 
+    private static int median(int x, int y, int z) {
+        return Math.max(Math.min(x, y), Math.min(Math.max(x, y), z));
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /*
+     * Splits both arrays into their ascending runs. Inputs that are already
+     * sorted (one run each), or made of a few sorted pieces, are merged in
+     * linear time with a loser tree; anything more scrambled is copied and
+     * sorted with sortInts().
+     */
     public int[] sort2Arrays(int[] array1, int[] array2) {
-        List<Integer> merged = new ArrayList<>();
-        for (int num : array1) merged.add(num);
-        for (int num : array2) merged.add(num);
-        Collections.sort(merged);
-        return merged.stream().mapToInt(i -> i).toArray();
+        List<LoserTree.Source> runs = new ArrayList<>();
+        if (!addRuns(array1, runs) || !addRuns(array2, runs)) {
+            int[] merged = Arrays.copyOf(array1, array1.length + array2.length);
+            System.arraycopy(array2, 0, merged, array1.length, array2.length);
+            sortInts(merged);
+            return merged;
+        }
+        int[] merged = new int[array1.length + array2.length];
+        if (runs.size() == 2 && array1.length > 0 && array2.length > 0)
+            merge(array1, array2, merged);
+        else if (!runs.isEmpty())
+            new LoserTree(runs.toArray(new LoserTree.Source[0])).drainTo(merged, 0);
+        return merged;
+    }
+
+    /*
+     * Same for two files of little-endian ints, writing the result to
+     * 'out'; see IntFiles.sort().
+     */
+    public void sort2Arrays(Path file1, Path file2, Path out) throws IOException {
+        IntFiles.sort(new Path[] { file1, file2 }, out);
+    }
+
+    // Two sorted arrays, the common case
+    private static void merge(int[] a, int[] b, int[] out) {
+        int i = 0, j = 0, o = 0;
+        while (i < a.length && j < b.length)
+            out[o++] = b[j] < a[i] ? b[j++] : a[i++];
+        System.arraycopy(a, i, out, o, a.length - i);
+        System.arraycopy(b, j, out, o + a.length - i, b.length - j);
+    }
+
+    private static final int MAX_RUNS = 64;
+
+    /*
+     * Adds the ascending runs of 'a' to 'runs'. Returns false, as soon as
+     * there are more than MAX_RUNS in all, if merging them would not beat
+     * sorting.
+     */
+    private static boolean addRuns(int[] a, List<LoserTree.Source> runs) {
+        int start = 0;
+        for (int i = 1; i <= a.length; i++) {
+            if (i == a.length || a[i] < a[i - 1]) {
+                if (runs.size() == MAX_RUNS)
+                    return false;
+                runs.add(new LoserTree.ArraySource(a, start, i));
+                start = i;
+            }
+        }
+        return true;
+    }
+
+    private static final int RADIX_THRESHOLD = 1 << 16;
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    /*
+     * Sorts in place, picking by size: Arrays.sort (dual-pivot quicksort)
+     * for small arrays, Arrays.parallelSort for large ones when there is
+     * more than one core, and else an LSD radix sort, which is linear
+     * and beats comparison sorts on large random int arrays.
+     */
+    static void sortInts(int[] a) {
+        if (a.length < RADIX_THRESHOLD)
+            Arrays.sort(a);
+        else if (a.length >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1)
+            Arrays.parallelSort(a);
+        else
+            radixSort(a);
+    }
+
+    /*
+     * LSD radix sort, a byte per pass; the sign bit is flipped in the last
+     * pass so negative values come first. A pass is skipped when all values
+     * have the same byte there.
+     */
+    static void radixSort(int[] a) {
+        int[] buffer = new int[a.length];
+        int[] src = a, dst = buffer;
+        int[] counts = new int[256];
+        for (int shift = 0; shift < 32; shift += 8) {
+            int flip = shift == 24 ? 0x80 : 0;
+            Arrays.fill(counts, 0);
+            for (int v : src)
+                counts[((v >>> shift) & 0xff) ^ flip]++;
+            if (counts[((src[0] >>> shift) & 0xff) ^ flip] == src.length)
+                continue;
+            for (int i = 0, sum = 0; i < 256; i++) {
+                int c = counts[i];
+                counts[i] = sum;
+                sum += c;
+            }
+            for (int v : src)
+                dst[counts[((v >>> shift) & 0xff) ^ flip]++] = v;
+            int[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if (src != a)
+            System.arraycopy(src, 0, a, 0, a.length);
     }
 }
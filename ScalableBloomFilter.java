@@ -0,0 +1,113 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Scalable bloom filter (Almeida et al., "Scalable Bloom Filters"),
+ *   for streams whose cardinality is not known up front. It is a stack
+ *   of BloomFilter's; when the newest one has taken its share of items
+ *   a new one is pushed that is GROWTH times larger and has a false
+ *   positive rate TIGHTENING times smaller. The rates form a geometric
+ *   series, so the overall rate stays below the configured bound
+ *
+ *      P = P0 + P0 * r + P0 * r^2 + ...  <=  P0 / (1 - r)
+ *
+ *   Since the capacities grow geometrically, n items need only
+ *   O(log(n / initialCapacity)) sub-filters, which bounds the cost of
+ *   a lookup.
+ *
+ ********************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+
+class ScalableBloomFilter {
+    private static final int MAX_HASHES = 8;
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+
+    private static class Stage {
+        private final BloomFilter filter;
+        private final long capacity;
+        private final double falsePositiveRate;
+        private long count = 0;
+
+        private Stage(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+
+            // Use the optimal number of hashes, capped at what BloomFilter
+            // supports; for a fixed k the bits needed for rate p are
+            // m = -k * n / ln(1 - p^(1/k)).
+            int noHashes = (int) Math.ceil(Math.log(1 / falsePositiveRate) / Math.log(2));
+            noHashes = Math.max(1, Math.min(MAX_HASHES, noHashes));
+            double bits = -noHashes * (double) capacity
+                    / Math.log(1 - Math.pow(falsePositiveRate, 1d / noHashes));
+            int log2noBits = 4;
+            while ((1L << log2noBits) < bits)
+                log2noBits++;
+            if (log2noBits > 31)
+                throw new IllegalStateException("Scalable bloom filter would be too big");
+            this.filter = new BloomFilter(log2noBits, noHashes, BloomFilter.HashMode.SINGLE_PASS);
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final double falsePositiveRate;
+    private long size = 0;
+
+    public ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+        if (initialCapacity < 1)
+            throw new IllegalArgumentException("Invalid initial capacity");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("Invalid false positive rate");
+
+        this.falsePositiveRate = falsePositiveRate;
+        stages.add(new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING)));
+    }
+
+    /*
+     * Adds a key; keys that already test positive are not counted again,
+     * so duplicates in the stream do not make the filter grow.
+     */
+    public void add(String s) {
+        if (contains(s))
+            return;
+        Stage newest = stages.get(stages.size() - 1);
+        if (newest.count >= newest.capacity) {
+            newest = new Stage(newest.capacity * GROWTH, newest.falsePositiveRate * TIGHTENING);
+            stages.add(newest);
+        }
+        newest.filter.add(s);
+        newest.count++;
+        size++;
+    }
+
+    /*
+     * Probes the newest (largest) sub-filter first, since that is where most
+     * of the keys are.
+     */
+    public boolean contains(String s) {
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).filter.contains(s))
+                return true;
+        }
+        return false;
+    }
+
+    public long size() { return size; }
+
+    public int noFilters() { return stages.size(); }
+
+    /*
+     * Upper bound on the current false positive rate, the sum of the rates
+     * of the sub-filters; never exceeds the configured rate.
+     */
+    public double falsePositiveRateBound() {
+        double rate = 0;
+        for (Stage stage : stages)
+            rate += stage.falsePositiveRate;
+        return rate;
+    }
+
+    public double targetFalsePositiveRate() { return falsePositiveRate; }
+}
@@ -0,0 +1,115 @@
+/******************************************************************
+ *
+ *   Zaki Khan / 272 001
+ *
+ *   Streaming top-k accumulator over ints: keeps the k largest values
+ *   seen so far in a primitive min-heap (no boxing), so the k-th largest
+ *   is always at the root. Values can be fed one at a time, in chunks,
+ *   or from an IntStream; for a parallel stream each fork/join leaf task
+ *   fills its own accumulator and the partial results are merged as the
+ *   tasks join. An accumulator is only O(k), so one per task is cheap.
+ *
+ *   Memory is O(k) whatever the length of the input.
+ *
+ ********************************************************************/
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+class TopK implements IntConsumer {
+    private final int[] heap;
+    private int size = 0;
+
+    public TopK(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("Invalid k");
+        heap = new int[k];
+    }
+
+    /*
+     * Collects the k largest values of a stream, in parallel if the
+     * stream is.
+     */
+    public static TopK of(IntStream values, int k) {
+        return values.collect(() -> new TopK(k), TopK::add, TopK::merge);
+    }
+
+    public static TopK of(int[] values, int k, boolean parallel) {
+        IntStream stream = Arrays.stream(values);
+        return of(parallel ? stream.parallel() : stream, k);
+    }
+
+    public void add(int value) {
+        if (size < heap.length) {
+            // sift up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= value)
+                    break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = value;
+        } else if (value > heap[0]) {
+            siftDown(value);
+        }
+    }
+
+    @Override
+    public void accept(int value) { add(value); }
+
+    public void addAll(int[] values, int off, int len) {
+        for (int i = off, end = off + len; i < end; i++)
+            add(values[i]);
+    }
+
+    /*
+     * Replaces the root (the smallest value kept) and restores the heap.
+     */
+    private void siftDown(int value) {
+        int i = 0, half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child])
+                child++;
+            if (value <= heap[child])
+                break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+
+    public void merge(TopK other) {
+        for (int i = 0; i < other.size; i++)
+            add(other.heap[i]);
+    }
+
+    public int size() { return size; }
+
+    /*
+     * The k-th largest value, once at least k values were added.
+     */
+    public int kth() {
+        if (size < heap.length)
+            throw new NoSuchElementException("Fewer than k values");
+        return heap[0];
+    }
+
+    /*
+     * The values kept, largest first.
+     */
+    public int[] toArray() {
+        int[] values = Arrays.copyOf(heap, size);
+        Arrays.sort(values);
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            int t = values[i];
+            values[i] = values[j];
+            values[j] = t;
+        }
+        return values;
+    }
+}